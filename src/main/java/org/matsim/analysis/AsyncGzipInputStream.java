@@ -0,0 +1,129 @@
+package org.matsim.analysis;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Input stream that decompresses a gzip file on a separate thread.
+ * Decompressed data is handed over in large blocks through a bounded queue, so that inflating and the consumer,
+ * e.g. an XML parser, run in parallel while memory usage stays limited.
+ */
+final class AsyncGzipInputStream extends InputStream {
+
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	/**
+	 * Number of blocks that may be decompressed ahead of the consumer.
+	 */
+	private static final int QUEUE_SIZE = 8;
+
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final Thread thread;
+
+	private volatile IOException error;
+	private volatile boolean closed;
+
+	private byte[] block;
+	private int pos;
+
+	AsyncGzipInputStream(String file) throws IOException {
+		InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+		thread = new Thread(() -> inflate(in), "inflate-" + Path.of(file).getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void inflate(InputStream in) {
+		try (in) {
+			while (!closed) {
+				byte[] buf = new byte[BLOCK_SIZE];
+				int n = in.readNBytes(buf, 0, BLOCK_SIZE);
+				if (n > 0)
+					queue.put(n == BLOCK_SIZE ? buf : Arrays.copyOf(buf, n));
+
+				if (n < BLOCK_SIZE)
+					break;
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			// Consumer has closed the stream
+			return;
+		}
+
+		try {
+			if (!closed)
+				queue.put(END);
+		} catch (InterruptedException e) {
+			// Consumer has closed the stream
+		}
+	}
+
+	/**
+	 * Ensure that there are bytes left in the current block.
+	 *
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean next() throws IOException {
+
+		if (block == END)
+			return false;
+
+		if (block == null || pos == block.length) {
+			try {
+				block = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+			}
+			pos = 0;
+
+			if (block == END) {
+				if (error != null)
+					throw new IOException("Error decompressing file", error);
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!next())
+			return -1;
+
+		return block[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		if (!next())
+			return -1;
+
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		queue.clear();
+	}
+}
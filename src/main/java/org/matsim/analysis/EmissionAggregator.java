@@ -0,0 +1,299 @@
+package org.matsim.analysis;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.emissions.Pollutant;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates warm and cold emissions of all pollutants by vehicle category, hour and link.
+ * <p>
+ * Values are stored column-wise: for each (emission type, category, hour) combination that occurs, there is one table with a row per link
+ * and one primitive column per pollutant. Rows are found by the {@link Id#index()} of the link,
+ * so that adding an emission does neither allocate nor need any map lookup. Columns are only allocated for pollutants that occur.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class EmissionAggregator {
+
+	private static final VehicleCategory[] CATEGORIES = VehicleCategory.values();
+	private static final Pollutant[] POLLUTANTS = Pollutant.values();
+	private static final EmissionType[] TYPES = EmissionType.values();
+
+	/**
+	 * Tables by emission type, category ordinal and hour, null if there are no emissions.
+	 */
+	private final Table[][][] tables = new Table[TYPES.length][CATEGORIES.length][0];
+
+	private final int initialLinks;
+
+	/**
+	 * Create an aggregator with the number of link ids currently known as initial capacity.
+	 */
+	public EmissionAggregator() {
+		this(Id.getNumberOfIds(Link.class));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param numberOfLinks expected number of links, tables grow if links with a higher index are added
+	 */
+	public EmissionAggregator(int numberOfLinks) {
+		this.initialLinks = Math.max(numberOfLinks, 16);
+	}
+
+	/**
+	 * Add all emissions of one event.
+	 *
+	 * @param category  vehicle category
+	 * @param hour      hour of the day, starting at 0
+	 * @param linkIndex {@link Id#index()} of the link
+	 * @param type      whether these are warm or cold emissions
+	 * @param emissions emitted amount by pollutant
+	 */
+	public void add(VehicleCategory category, int hour, int linkIndex, EmissionType type, Map<Pollutant, Double> emissions) {
+		Table table = getOrCreateTable(type, category, hour);
+		int row = table.row(linkIndex);
+		for (Map.Entry<Pollutant, Double> e : emissions.entrySet()) {
+			table.add(e.getKey().ordinal(), row, e.getValue());
+		}
+	}
+
+	/**
+	 * Add the emission of a single pollutant.
+	 *
+	 * @see #add(VehicleCategory, int, int, EmissionType, Map)
+	 */
+	public void add(VehicleCategory category, int hour, int linkIndex, EmissionType type, Pollutant pollutant, double value) {
+		Table table = getOrCreateTable(type, category, hour);
+		table.add(pollutant.ordinal(), table.row(linkIndex), value);
+	}
+
+	/**
+	 * Return the aggregated emission of one pollutant, or 0 if there is none.
+	 */
+	public double get(VehicleCategory category, int hour, int linkIndex, EmissionType type, Pollutant pollutant) {
+		Table[] hours = tables[type.ordinal()][category.ordinal()];
+		if (hour >= hours.length || hours[hour] == null)
+			return 0;
+
+		Table table = hours[hour];
+		if (linkIndex >= table.rowOfLink.length || table.rowOfLink[linkIndex] < 0)
+			return 0;
+
+		return table.get(pollutant.ordinal(), table.rowOfLink[linkIndex]);
+	}
+
+	private Table getOrCreateTable(EmissionType type, VehicleCategory category, int hour) {
+
+		Table[] hours = tables[type.ordinal()][category.ordinal()];
+		if (hour >= hours.length) {
+			hours = Arrays.copyOf(hours, hour + 1);
+			tables[type.ordinal()][category.ordinal()] = hours;
+		}
+
+		if (hours[hour] == null)
+			hours[hour] = new Table(initialLinks);
+
+		return hours[hour];
+	}
+
+	/**
+	 * Iterate over the sums of all links for each category and hour with emissions.
+	 *
+	 * @param type       emission type
+	 * @param pollutants pollutants to sum, in the order they are passed to the consumer
+	 */
+	public void forEachByTime(EmissionType type, List<Pollutant> pollutants, TimeConsumer consumer) {
+
+		int[] columns = pollutants.stream().mapToInt(Pollutant::ordinal).toArray();
+
+		for (VehicleCategory category : CATEGORIES) {
+			Table[] hours = tables[type.ordinal()][category.ordinal()];
+			for (int hour = 0; hour < hours.length; hour++) {
+				Table table = hours[hour];
+				if (table == null)
+					continue;
+
+				double[] sums = new double[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					double[] values = table.columns[columns[i]];
+					if (values == null)
+						continue;
+
+					for (int row = 0; row < table.rows; row++) {
+						sums[i] += values[row];
+					}
+				}
+
+				consumer.accept(category, hour, sums);
+			}
+		}
+	}
+
+	/**
+	 * Iterate over the sums of all hours for each category and link with emissions. Links are ordered by their index.
+	 *
+	 * @param type       emission type
+	 * @param pollutants pollutants to sum, in the order they are passed to the consumer
+	 */
+	public void forEachByLink(EmissionType type, List<Pollutant> pollutants, LinkConsumer consumer) {
+
+		int[] columns = pollutants.stream().mapToInt(Pollutant::ordinal).toArray();
+
+		for (VehicleCategory category : CATEGORIES) {
+			Table total = null;
+			for (Table table : tables[type.ordinal()][category.ordinal()]) {
+				if (table == null)
+					continue;
+
+				if (total == null)
+					total = new Table(table.rowOfLink.length);
+
+				for (int row = 0; row < table.rows; row++) {
+					int totalRow = total.row(table.linkOfRow[row]);
+					for (int i = 0; i < columns.length; i++) {
+						total.add(i, totalRow, table.get(columns[i], row));
+					}
+				}
+			}
+
+			if (total == null)
+				continue;
+
+			for (int link = 0; link < total.rowOfLink.length; link++) {
+				int row = total.rowOfLink[link];
+				if (row < 0)
+					continue;
+
+				double[] sums = new double[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					sums[i] = total.get(i, row);
+				}
+
+				consumer.accept(category, Id.get(link, Link.class), sums);
+			}
+		}
+	}
+
+	/**
+	 * Vehicle categories used in the emission summary.
+	 */
+	public enum VehicleCategory {
+		CAR("car"),
+		HGV("HGV"),
+		LCV("LCV"),
+		MICROCAR("microcar"),
+		PT("pt"),
+		UNKNOWN("unknown");
+
+		private final String label;
+
+		VehicleCategory(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Name of the category as written in the summary.
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * Return the category with the given label, ignoring case.
+		 *
+		 * @return the category, or null if there is none with this label
+		 */
+		public static VehicleCategory fromLabel(String label) {
+			for (VehicleCategory c : CATEGORIES) {
+				if (c.label.equalsIgnoreCase(label))
+					return c;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Source of the emissions.
+	 */
+	public enum EmissionType {
+		WARM,
+		COLD
+	}
+
+	@FunctionalInterface
+	public interface TimeConsumer {
+		void accept(VehicleCategory category, int hour, double[] values);
+	}
+
+	@FunctionalInterface
+	public interface LinkConsumer {
+		void accept(VehicleCategory category, Id<Link> linkId, double[] values);
+	}
+
+	/**
+	 * Values of all links for one category and hour. Rows are created in the order links occur.
+	 */
+	private static final class Table {
+
+		private final double[][] columns = new double[POLLUTANTS.length][];
+		private int[] rowOfLink;
+		private int[] linkOfRow;
+		private int rows;
+
+		private Table(int links) {
+			this.rowOfLink = new int[links];
+			Arrays.fill(rowOfLink, -1);
+			this.linkOfRow = new int[256];
+		}
+
+		/**
+		 * Return the row of a link, creating it if necessary.
+		 */
+		private int row(int linkIndex) {
+
+			if (linkIndex >= rowOfLink.length) {
+				int size = rowOfLink.length;
+				rowOfLink = Arrays.copyOf(rowOfLink, Math.max(linkIndex + 1, size + (size >> 1)));
+				Arrays.fill(rowOfLink, size, rowOfLink.length, -1);
+			}
+
+			int row = rowOfLink[linkIndex];
+			if (row >= 0)
+				return row;
+
+			if (rows == linkOfRow.length) {
+				int capacity = rows + (rows >> 1);
+				linkOfRow = Arrays.copyOf(linkOfRow, capacity);
+				for (int i = 0; i < columns.length; i++) {
+					if (columns[i] != null)
+						columns[i] = Arrays.copyOf(columns[i], capacity);
+				}
+			}
+
+			row = rows++;
+			rowOfLink[linkIndex] = row;
+			linkOfRow[row] = linkIndex;
+			return row;
+		}
+
+		private void add(int column, int row, double value) {
+			double[] values = columns[column];
+			if (values == null) {
+				values = new double[linkOfRow.length];
+				columns[column] = values;
+			}
+			values[row] += value;
+		}
+
+		private double get(int column, int row) {
+			double[] values = columns[column];
+			return values == null ? 0 : values[row];
+		}
+	}
+}
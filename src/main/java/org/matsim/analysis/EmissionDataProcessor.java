@@ -1,20 +1,38 @@
 package org.matsim.analysis;
 
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.matsim.analysis.EmissionAggregator.EmissionType;
+import org.matsim.analysis.EmissionAggregator.VehicleCategory;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.emissions.Pollutant;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Utility class for processing emission data from MATSim simulation.
- * It reads vehicle and event files, aggregates data, and exports results to Excel.
+ * It reads vehicle and event files, aggregates data, and exports results to Excel or CSV.
  */
 public final class EmissionDataProcessor {
 
@@ -26,52 +44,81 @@ public final class EmissionDataProcessor {
 
 
 	/**
-	 * Parses the vehicle file and extracts vehicle types.
-	 * @param vehicleFile Path to the vehicle file (compressed XML).
-	 * @return A map where the key is the vehicle ID and the value is the vehicle type.
-	 * @throws Exception If an error occurs while reading the file.
+	 * Vehicle type attribute containing the label of the {@link VehicleCategory} used in the summary.
 	 */
-	public static Map<String, String> parseVehicleFile(String vehicleFile) throws IOException, SAXException, javax.xml.parsers.ParserConfigurationException {
-		Map<String, String> vehicleMap = new HashMap<>();
-		InputStream inputStream = new GZIPInputStream(new FileInputStream(vehicleFile));
+	public static final String VEHICLE_CATEGORY_ATTRIBUTE = "emissionSummaryCategory";
 
+	/**
+	 * Pollutants by their name in the events file.
+	 */
+	private static final Map<String, Pollutant> POLLUTANTS_BY_NAME = new HashMap<>();
 
-		javax.xml.parsers.SAXParserFactory factory = javax.xml.parsers.SAXParserFactory.newInstance();
-		javax.xml.parsers.SAXParser parser = factory.newSAXParser();
+	private static final Pollutant[] POLLUTANTS = Pollutant.values();
 
+	static {
+		for (Pollutant p : POLLUTANTS) {
+			POLLUTANTS_BY_NAME.put(p.name(), p);
+		}
+	}
 
-		DefaultHandler handler = new DefaultHandler() {
-			boolean vehicleId = false;
-			boolean vehicleType = false;
+	/**
+	 * Pollutants contained in the summary.
+	 */
+	private static final List<Pollutant> SUMMARY_POLLUTANTS = List.of(Pollutant.FC_MJ, Pollutant.CO2e);
 
-			public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-				if (qName.equals("vehicle")) {
-					vehicleId = attributes.getValue("id") != null;
-					vehicleType = attributes.getValue("type") != null;
-					if (vehicleId && vehicleType) {
-						String id = attributes.getValue("id");
-						String type = attributes.getValue("type");
-						vehicleMap.put(id, type);
-					}
-				}
+	/**
+	 * Number of events handed over from the parser to the aggregation at once.
+	 */
+	private static final int BATCH_SIZE = 4096;
+
+	/**
+	 * Number of batches the parser may be ahead of the aggregation.
+	 */
+	private static final int QUEUE_SIZE = 16;
+
+	/**
+	 * Number of rows kept in memory when writing Excel files.
+	 */
+	private static final int ROW_WINDOW = 100;
+
+	/**
+	 * Reads the vehicle files and determines the summary category of each vehicle with {@link #getVehicleCategory(VehicleType)},
+	 * so that the same categories are used as during the simulation.
+	 * @param vehicleFiles Paths to the vehicle files, usually the scenario and transit vehicles.
+	 * @return A map where the key is the vehicle ID and the value is the vehicle category.
+	 */
+	public static Map<String, VehicleCategory> parseVehicleFile(String... vehicleFiles) {
+		Map<String, VehicleCategory> vehicleMap = new HashMap<>();
+
+		for (String vehicleFile : vehicleFiles) {
+			Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+			new MatsimVehicleReader(vehicles).readFile(vehicleFile);
+
+			Map<Id<VehicleType>, VehicleCategory> categories = new HashMap<>();
+			for (Vehicle vehicle : vehicles.getVehicles().values()) {
+				VehicleType type = vehicle.getType();
+				vehicleMap.putIfAbsent(vehicle.getId().toString(), categories.computeIfAbsent(type.getId(), k -> getVehicleCategory(type)));
 			}
-		};
+		}
 
-		parser.parse(inputStream, handler);
-		inputStream.close();
 		return vehicleMap;
 	}
 
 	/**
-	 * Parses the event file and aggregates emissions data.
+	 * Parses the event file and aggregates all pollutants of warm and cold emission events.
+	 * Decompression, XML parsing and aggregation run on separate threads. Events are aggregated in file order,
+	 * so the result is the same as with sequential processing.
+	 *
 	 * @param eventFile Path to the event file (compressed XML).
-	 * @param vehicleMap A map of vehicle IDs to vehicle types.
-	 * @return A nested map containing emissions data by vehicle type, hour, and link ID.
+	 * @param vehicleMap A map of vehicle IDs to vehicle categories, see {@link #parseVehicleFile(String...)}.
+	 * @return Emissions data aggregated by vehicle category, hour, and link.
 	 * @throws Exception If an error occurs while reading the file.
 	 */
-	public static Map<String, Map<Double, Map<String, EmissionData>>> parseEventFile(String eventFile, Map<String, String> vehicleMap) throws IOException, SAXException, javax.xml.parsers.ParserConfigurationException, NumberFormatException {
-		Map<String, Map<Double, Map<String, EmissionData>>> data = new HashMap<>();
-		InputStream inputStream = new GZIPInputStream(new FileInputStream(eventFile));
+	public static EmissionAggregator parseEventFile(String eventFile, Map<String, VehicleCategory> vehicleMap) throws IOException, SAXException, javax.xml.parsers.ParserConfigurationException, NumberFormatException {
+		EmissionAggregator data = new EmissionAggregator();
+
+		BlockingQueue<EventBatch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		AtomicReference<Exception> error = new AtomicReference<>();
 
 
 		javax.xml.parsers.SAXParserFactory factory = javax.xml.parsers.SAXParserFactory.newInstance();
@@ -79,171 +126,272 @@ public final class EmissionDataProcessor {
 
 
 		DefaultHandler handler = new DefaultHandler() {
-			boolean isWarmEmissionEvent = false;
-			String vehicleId;
-			Double time;
-			double hour;
-			String linkId;
-			double fcMj;
-			double co2e;
+			EventBatch batch = new EventBatch();
 
 			public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-				if (qName.equals("event") && attributes.getValue("type").equals("warmEmissionEvent")) {
-					vehicleId = attributes.getValue("vehicleId");
-					time = Double.parseDouble(attributes.getValue("time"));
-					hour = Math.floor(time / 3600);
-					linkId = attributes.getValue("linkId");
-					fcMj = Double.parseDouble(attributes.getValue("FC_MJ"));
-					co2e = Double.parseDouble(attributes.getValue("CO2e"));
+				if (!qName.equals("event"))
+					return;
+
+				String type = attributes.getValue("type");
+				EmissionType emissionType;
+				if (type.equals(WarmEmissionEvent.EVENT_TYPE))
+					emissionType = EmissionType.WARM;
+				else if (type.equals(ColdEmissionEvent.EVENT_TYPE))
+					emissionType = EmissionType.COLD;
+				else
+					return;
+
+				int i = batch.size++;
+				batch.types[i] = emissionType;
+				batch.vehicleIds[i] = attributes.getValue("vehicleId");
+				batch.hours[i] = (int) Math.floor(Double.parseDouble(attributes.getValue("time")) / 3600);
+				batch.linkIds[i] = attributes.getValue("linkId");
+
+				// Pollutants that are not present in the event are NaN
+				double[] values = batch.values[i];
+				Arrays.fill(values, Double.NaN);
+				for (int j = 0; j < attributes.getLength(); j++) {
+					Pollutant pollutant = POLLUTANTS_BY_NAME.get(attributes.getQName(j));
+					if (pollutant != null)
+						values[pollutant.ordinal()] = Double.parseDouble(attributes.getValue(j));
+				}
 
-//					System.out.println(hour + ":" + vehicleId);
+				if (batch.size == BATCH_SIZE)
+					flush();
+			}
 
+			@Override
+			public void endDocument() {
+				if (batch.size > 0)
+					flush();
+			}
 
-					String vehicleType = vehicleMap.getOrDefault(vehicleId, "unknown");
+			private void flush() {
+				try {
+					queue.put(batch);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while parsing events", e);
+				}
+				batch = new EventBatch();
+			}
+		};
 
-					String vehicleCategory = switch (vehicleType) {
-						case "car", "ride", "vwCaddy", "golf1.4" -> "car";
-						case "heavy40t", "medium18t", "freight", "truck" -> "HGV";
-						case "mercedes313", "light8t" -> "LCV";
-						case "microcar" -> "microcar";
-						case "Tram_veh_type", "Ferry_veh_type", "Bus_veh_type", "RE_RB_veh_type", "S-Bahn_veh_type", "U-Bahn_veh_type" -> "pt";
-						default -> "unknown";
-					};
+		Thread parserThread = new Thread(() -> {
+			try (InputStream inputStream = new AsyncGzipInputStream(eventFile)) {
+				parser.parse(inputStream, handler);
+			} catch (Exception e) {
+				error.set(e);
+			} finally {
+				try {
+					queue.put(EventBatch.END);
+				} catch (InterruptedException e) {
+					// Aggregation has been aborted
+				}
+			}
+		}, "parse-events");
+		parserThread.setDaemon(true);
+		parserThread.start();
+
+		try {
+			EventBatch batch;
+			while ((batch = queue.take()) != EventBatch.END) {
+				for (int i = 0; i < batch.size; i++) {
+					VehicleCategory category = vehicleMap.getOrDefault(batch.vehicleIds[i], VehicleCategory.UNKNOWN);
+					Id<Link> linkId = Id.createLinkId(batch.linkIds[i]);
+
+					double[] values = batch.values[i];
+					for (int j = 0; j < values.length; j++) {
+						if (!Double.isNaN(values[j]))
+							data.add(category, batch.hours[i], linkId.index(), batch.types[i], POLLUTANTS[j], values[j]);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while aggregating events");
+		} finally {
+			parserThread.interrupt();
+		}
 
+		Exception e = error.get();
+		if (e instanceof IOException io)
+			throw io;
+		if (e instanceof SAXException sax)
+			throw sax;
+		if (e instanceof RuntimeException rt)
+			throw rt;
+		if (e != null)
+			throw new IOException("Error parsing events", e);
 
+		return data;
+	}
 
-//					System.out.println(vehicleCategory);
+	/**
+	 * Maps a vehicle type to the vehicle category used in the summary.
+	 * The category is read from the {@link #VEHICLE_CATEGORY_ATTRIBUTE} attribute of the type, if present.
+	 * Otherwise, it is derived from the type id.
+	 *
+	 * @param vehicleType The vehicle type.
+	 * @return The vehicle category, or {@link VehicleCategory#UNKNOWN} if the type is not known.
+	 */
+	public static VehicleCategory getVehicleCategory(VehicleType vehicleType) {
+		Object attr = vehicleType.getAttributes().getAttribute(VEHICLE_CATEGORY_ATTRIBUTE);
+		if (attr != null) {
+			VehicleCategory category = VehicleCategory.fromLabel(attr.toString());
+			if (category == null)
+				throw new IllegalArgumentException("Unknown vehicle category '" + attr + "' of vehicle type " + vehicleType.getId());
+
+			return category;
+		}
 
-					data.putIfAbsent(vehicleCategory, new HashMap<>());
-					data.get(vehicleCategory).putIfAbsent(hour, new HashMap<>());
-					data.get(vehicleCategory).get(hour).putIfAbsent(linkId, new EmissionData(0.0, 0.0));
+		return getVehicleCategory(vehicleType.getId().toString());
+	}
 
-					EmissionData emission = data.get(vehicleCategory).get(hour).get(linkId);
-					emission.setFcMj(emission.getFcMj() + fcMj);
-					emission.setCo2e(emission.getCo2e() + co2e);
-				}
-			}
+	/**
+	 * Maps a vehicle type to the vehicle category used in the summary.
+	 *
+	 * @param vehicleType The vehicle type id.
+	 * @return The vehicle category, or {@link VehicleCategory#UNKNOWN} if the type is not known.
+	 */
+	public static VehicleCategory getVehicleCategory(String vehicleType) {
+		return switch (vehicleType) {
+			case "car", "ride", "vwCaddy", "golf1.4" -> VehicleCategory.CAR;
+			case "heavy40t", "medium18t", "freight", "truck" -> VehicleCategory.HGV;
+			case "mercedes313", "light8t" -> VehicleCategory.LCV;
+			case "microcar" -> VehicleCategory.MICROCAR;
+			case "Tram_veh_type", "Ferry_veh_type", "Bus_veh_type", "RE_RB_veh_type", "S-Bahn_veh_type", "U-Bahn_veh_type" -> VehicleCategory.PT;
+			default -> VehicleCategory.UNKNOWN;
 		};
+	}
 
-		parser.parse(inputStream, handler);
-		inputStream.close();
-		return data;
+	/**
+	 * Saves the aggregated emissions data in the given format.
+	 *
+	 * @param data The emissions data organized by vehicle category, time, and link.
+	 * @param output The output path without file extension.
+	 * @param format The output format.
+	 * @throws IOException If an error occurs while writing the file.
+	 */
+	public static void saveSummary(EmissionAggregator data, String output, SummaryFormat format) throws IOException {
+		switch (format) {
+			case XLSX -> saveToExcel(data, output + ".xlsx");
+			case CSV -> saveToCsv(data, output);
+		}
 	}
 
 	/**
 	 * Saves the aggregated emissions data to an Excel file.
+	 * Rows are streamed to disk, so that only a small window of rows is kept in memory.
 	 *
-	 * @param data The emissions data organized by vehicle category, time, and link ID.
+	 * @param data The emissions data organized by vehicle category, time, and link.
 	 * @param outputFile The path to the output Excel file.
 	 * @throws IOException If an error occurs while writing the file.
 	 */
-	public static void saveToExcel(Map<String, Map<Double, Map<String, EmissionData>>> data, String outputFile) throws IOException {
-		Workbook workbook = new XSSFWorkbook();
-
-
-		Sheet sheet1 = workbook.createSheet("Summary_By_Time");
-		Row headerRow1 = sheet1.createRow(0);
-		headerRow1.createCell(0).setCellValue("vehicleCategory");
-		headerRow1.createCell(1).setCellValue("Time");
-		headerRow1.createCell(2).setCellValue("Sum_FC_MJ");
-		headerRow1.createCell(3).setCellValue("Sum_CO2e");
-
-		int rowNum1 = 1;
-
-		for (Map.Entry<String, Map<Double, Map<String, EmissionData>>> vehicleEntry : data.entrySet()) {
-			String vehicleCategory = vehicleEntry.getKey();
-
-			for (Map.Entry<Double, Map<String, EmissionData>> timeEntry : vehicleEntry.getValue().entrySet()) {
-				Double time = timeEntry.getKey();
-				double sumFcMj = 0.0;
-				double sumCo2e = 0.0;
-
-				for (EmissionData emission : timeEntry.getValue().values()) {
-					sumFcMj += emission.getFcMj();
-					sumCo2e += emission.getCo2e();
-				}
-
-				Row row = sheet1.createRow(rowNum1++);
-				row.createCell(0).setCellValue(vehicleCategory);
-				row.createCell(1).setCellValue(time);
-				row.createCell(2).setCellValue(sumFcMj);
-				row.createCell(3).setCellValue(sumCo2e);
+	public static void saveToExcel(EmissionAggregator data, String outputFile) throws IOException {
+		SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+		workbook.setCompressTempFiles(true);
+
+		try {
+			Sheet sheet1 = workbook.createSheet("Summary_By_Time");
+			Row headerRow1 = sheet1.createRow(0);
+			headerRow1.createCell(0).setCellValue("vehicleCategory");
+			headerRow1.createCell(1).setCellValue("Time");
+			headerRow1.createCell(2).setCellValue("Sum_FC_MJ");
+			headerRow1.createCell(3).setCellValue("Sum_CO2e");
+
+			int[] rowNum1 = {1};
+
+			data.forEachByTime(EmissionType.WARM, SUMMARY_POLLUTANTS, (category, hour, sums) -> {
+				Row row = sheet1.createRow(rowNum1[0]++);
+				row.createCell(0).setCellValue(category.getLabel());
+				row.createCell(1).setCellValue(hour);
+				row.createCell(2).setCellValue(sums[0]);
+				row.createCell(3).setCellValue(sums[1]);
+			});
+
+
+			Sheet sheet2 = workbook.createSheet("Summary_By_LinkId");
+			Row headerRow2 = sheet2.createRow(0);
+			headerRow2.createCell(0).setCellValue("vehicleCategory");
+			headerRow2.createCell(1).setCellValue("LinkId");
+			headerRow2.createCell(2).setCellValue("Sum_FC_MJ");
+			headerRow2.createCell(3).setCellValue("Sum_CO2e");
+
+			int[] rowNum2 = {1};
+
+			data.forEachByLink(EmissionType.WARM, SUMMARY_POLLUTANTS, (category, linkId, sums) -> {
+				Row row = sheet2.createRow(rowNum2[0]++);
+				row.createCell(0).setCellValue(category.getLabel());
+				row.createCell(1).setCellValue(linkId.toString());
+				row.createCell(2).setCellValue(sums[0]);
+				row.createCell(3).setCellValue(sums[1]);
+			});
+
+
+			try (FileOutputStream fileOut = new FileOutputStream(outputFile)) {
+				workbook.write(fileOut);
 			}
+		} finally {
+			// Removes the temporary files holding the flushed rows
+			workbook.dispose();
+			workbook.close();
 		}
+	}
 
+	/**
+	 * Saves the aggregated emissions data to two CSV files, with the same content as the Excel sheets.
+	 *
+	 * @param data The emissions data organized by vehicle category, time, and link.
+	 * @param output The output path without file extension, the sheet name is appended.
+	 * @throws IOException If an error occurs while writing the files.
+	 */
+	public static void saveToCsv(EmissionAggregator data, String output) throws IOException {
 
-		Sheet sheet2 = workbook.createSheet("Summary_By_LinkId");
-		Row headerRow2 = sheet2.createRow(0);
-		headerRow2.createCell(0).setCellValue("vehicleCategory");
-		headerRow2.createCell(1).setCellValue("LinkId");
-		headerRow2.createCell(2).setCellValue("Sum_FC_MJ");
-		headerRow2.createCell(3).setCellValue("Sum_CO2e");
-
-		int rowNum2 = 1;
-
-		for (Map.Entry<String, Map<Double, Map<String, EmissionData>>> vehicleEntry : data.entrySet()) {
-			String vehicleCategory = vehicleEntry.getKey();
-			Map<String, EmissionData> linkData = new HashMap<>();
-
-			for (Map<String, EmissionData> timeMap : vehicleEntry.getValue().values()) {
-				for (Map.Entry<String, EmissionData> linkEntry : timeMap.entrySet()) {
-					String linkId = linkEntry.getKey();
-					EmissionData emission = linkEntry.getValue();
+		try (CSVPrinter printer = new CSVPrinter(Files.newBufferedWriter(Path.of(output + "_Summary_By_Time.csv")),
+			CSVFormat.DEFAULT.builder().setHeader("vehicleCategory", "Time", "Sum_FC_MJ", "Sum_CO2e").build())) {
 
-					linkData.putIfAbsent(linkId, new EmissionData(0.0, 0.0));
-					EmissionData aggregatedEmission = linkData.get(linkId);
-					aggregatedEmission.setFcMj(aggregatedEmission.getFcMj() + emission.getFcMj());
-					aggregatedEmission.setCo2e(aggregatedEmission.getCo2e() + emission.getCo2e());
-				}
-			}
+			data.forEachByTime(EmissionType.WARM, SUMMARY_POLLUTANTS,
+				(category, hour, sums) -> print(printer, category.getLabel(), hour, sums[0], sums[1]));
+		}
 
-			for (Map.Entry<String, EmissionData> linkEntry : linkData.entrySet()) {
-				String linkId = linkEntry.getKey();
-				EmissionData emission = linkEntry.getValue();
+		try (CSVPrinter printer = new CSVPrinter(Files.newBufferedWriter(Path.of(output + "_Summary_By_LinkId.csv")),
+			CSVFormat.DEFAULT.builder().setHeader("vehicleCategory", "LinkId", "Sum_FC_MJ", "Sum_CO2e").build())) {
 
-				Row row = sheet2.createRow(rowNum2++);
-				row.createCell(0).setCellValue(vehicleCategory);
-				row.createCell(1).setCellValue(linkId);
-				row.createCell(2).setCellValue(emission.getFcMj());
-				row.createCell(3).setCellValue(emission.getCo2e());
-			}
+			data.forEachByLink(EmissionType.WARM, SUMMARY_POLLUTANTS,
+				(category, linkId, sums) -> print(printer, category.getLabel(), linkId, sums[0], sums[1]));
 		}
+	}
 
-
-		try (FileOutputStream fileOut = new FileOutputStream(outputFile)) {
-			workbook.write(fileOut);
+	private static void print(CSVPrinter printer, Object... values) {
+		try {
+			printer.printRecord(values);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		workbook.close();
 	}
 
 	/**
-	 * Data structure for storing fuel consumption and CO2 emissions.
+	 * Output formats of the emission summary.
 	 */
-	public static final class EmissionData {
-		private double fcMj;
-		private double co2e;
-
-		public EmissionData(double fcMj, double co2e) {
-			this.fcMj = fcMj;
-			this.co2e = co2e;
-		}
-
-		public double getFcMj() {
-			return fcMj;
-		}
+	public enum SummaryFormat {
+		XLSX,
+		CSV
+	}
 
-		public void setFcMj(double fcMj) {
-			this.fcMj = fcMj;
-		}
+	/**
+	 * Attributes of consecutive emission events.
+	 */
+	private static final class EventBatch {
 
-		public double getCo2e() {
-			return co2e;
-		}
+		private static final EventBatch END = new EventBatch();
 
-		public void setCo2e(double co2e) {
-			this.co2e = co2e;
-		}
+		private final String[] vehicleIds = new String[BATCH_SIZE];
+		private final String[] linkIds = new String[BATCH_SIZE];
+		private final int[] hours = new int[BATCH_SIZE];
+		private final EmissionType[] types = new EmissionType[BATCH_SIZE];
+		private final double[][] values = new double[BATCH_SIZE][POLLUTANTS.length];
+		private int size;
 	}
 
-
 }
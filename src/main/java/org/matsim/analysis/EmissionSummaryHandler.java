@@ -0,0 +1,72 @@
+package org.matsim.analysis;
+
+import org.matsim.analysis.EmissionAggregator.EmissionType;
+import org.matsim.analysis.EmissionAggregator.VehicleCategory;
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates all pollutants of warm and cold emission events in memory, in the same way as {@link EmissionDataProcessor#parseEventFile(String, Map)}.
+ * This allows to create the emission summary without writing and re-reading the emission events.
+ * The vehicle category is determined by {@link EmissionDataProcessor#getVehicleCategory(VehicleType)}.
+ * Vehicles are looked up in all given containers, so that transit vehicles are found during a simulation, where they are not part of the scenario vehicles.
+ */
+public final class EmissionSummaryHandler implements WarmEmissionEventHandler, ColdEmissionEventHandler {
+
+	private final Vehicles[] vehicles;
+	private final EmissionAggregator data = new EmissionAggregator();
+
+	private final Map<Id<VehicleType>, VehicleCategory> categories = new HashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param vehicles containers used to look up the vehicle type of each event, usually scenario and transit vehicles
+	 */
+	public EmissionSummaryHandler(Vehicles... vehicles) {
+		this.vehicles = vehicles;
+	}
+
+	@Override
+	public void handleEvent(WarmEmissionEvent event) {
+		data.add(getCategory(event.getVehicleId()), (int) Math.floor(event.getTime() / 3600), event.getLinkId().index(),
+			EmissionType.WARM, event.getWarmEmissions());
+	}
+
+	@Override
+	public void handleEvent(ColdEmissionEvent event) {
+		data.add(getCategory(event.getVehicleId()), (int) Math.floor(event.getTime() / 3600), event.getLinkId().index(),
+			EmissionType.COLD, event.getColdEmissions());
+	}
+
+	private VehicleCategory getCategory(Id<Vehicle> vehicleId) {
+		Vehicle vehicle = null;
+		for (Vehicles v : vehicles) {
+			vehicle = v.getVehicles().get(vehicleId);
+			if (vehicle != null)
+				break;
+		}
+
+		if (vehicle == null)
+			return VehicleCategory.UNKNOWN;
+
+		VehicleType type = vehicle.getType();
+		return categories.computeIfAbsent(type.getId(), k -> EmissionDataProcessor.getVehicleCategory(type));
+	}
+
+	/**
+	 * Aggregated emissions by emission type, vehicle category, hour, link and pollutant.
+	 */
+	public EmissionAggregator getData() {
+		return data;
+	}
+}
@@ -0,0 +1,41 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.events.EventsUtils;
+
+import java.nio.file.Path;
+
+/**
+ * This module measures the time spent in each event handler and writes it per iteration to {@code handler_timings.csv}.
+ * The events manager configured in the config is created as usual and wrapped by an {@link InstrumentedEventsManager}.
+ */
+public final class EventHandlerTimingModule extends AbstractModule {
+
+	@Override
+	public void install() {
+		bind(EventsManager.class).toProvider(InstrumentedEventsManagerProvider.class).in(Singleton.class);
+	}
+
+	private static final class InstrumentedEventsManagerProvider implements Provider<EventsManager> {
+
+		private final Config config;
+		private final OutputDirectoryHierarchy outDir;
+
+		@Inject
+		private InstrumentedEventsManagerProvider(Config config, OutputDirectoryHierarchy outDir) {
+			this.config = config;
+			this.outDir = outDir;
+		}
+
+		@Override
+		public EventsManager get() {
+			return new InstrumentedEventsManager(EventsUtils.createEventsManager(config), Path.of(outDir.getOutputFilename("handler_timings.csv")));
+		}
+	}
+}
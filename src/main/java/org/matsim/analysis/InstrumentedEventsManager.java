@@ -0,0 +1,370 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.events.handler.*;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.api.experimental.events.VehicleDepartsAtFacilityEvent;
+import org.matsim.core.api.experimental.events.handler.VehicleArrivesAtFacilityEventHandler;
+import org.matsim.core.api.experimental.events.handler.VehicleDepartsAtFacilityEventHandler;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.events.handler.EventHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Events manager that measures the time each registered handler spends on each handler interface.
+ * Each handler is replaced by one {@link Proxy} that implements the same handler interfaces, so the delegate still dispatches
+ * only the event types the handler is interested in, and handlers are not split between threads of parallel events managers.
+ * Handler methods are called through a fixed table of handler interfaces, without reflection.
+ * Handlers implementing other interfaces are registered unchanged and not measured.
+ * <p>
+ * Statistics are kept per handler instance. Each handler is called by only one thread at a time, so they are plain fields, which are
+ * read after the delegate has finished processing. Instances of the same class are numbered in the order of registration.
+ * The event type is the simple name of the event class of the interface, or {@code all} for {@link BasicEventHandler}.
+ * <p>
+ * Latencies are recorded in a histogram with power-of-two buckets, so percentiles are accurate up to a factor of two.
+ * At the end of each iteration, the statistics are appended to a CSV file and reset.
+ * Cumulative handler time is written in milliseconds, percentiles in microseconds.
+ */
+final class InstrumentedEventsManager implements EventsManager {
+
+	private static final Logger log = LogManager.getLogger(InstrumentedEventsManager.class);
+
+	/**
+	 * Handler interfaces that can be measured and how to call them.
+	 */
+	private static final List<Dispatch<?, ?>> DISPATCH = List.of(
+		new Dispatch<>(ActivityEndEvent.class, ActivityEndEventHandler.class, ActivityEndEventHandler::handleEvent),
+		new Dispatch<>(ActivityStartEvent.class, ActivityStartEventHandler.class, ActivityStartEventHandler::handleEvent),
+		new Dispatch<>(LinkEnterEvent.class, LinkEnterEventHandler.class, LinkEnterEventHandler::handleEvent),
+		new Dispatch<>(LinkLeaveEvent.class, LinkLeaveEventHandler.class, LinkLeaveEventHandler::handleEvent),
+		new Dispatch<>(PersonArrivalEvent.class, PersonArrivalEventHandler.class, PersonArrivalEventHandler::handleEvent),
+		new Dispatch<>(PersonDepartureEvent.class, PersonDepartureEventHandler.class, PersonDepartureEventHandler::handleEvent),
+		new Dispatch<>(PersonEntersVehicleEvent.class, PersonEntersVehicleEventHandler.class, PersonEntersVehicleEventHandler::handleEvent),
+		new Dispatch<>(PersonLeavesVehicleEvent.class, PersonLeavesVehicleEventHandler.class, PersonLeavesVehicleEventHandler::handleEvent),
+		new Dispatch<>(PersonMoneyEvent.class, PersonMoneyEventHandler.class, PersonMoneyEventHandler::handleEvent),
+		new Dispatch<>(PersonScoreEvent.class, PersonScoreEventHandler.class, PersonScoreEventHandler::handleEvent),
+		new Dispatch<>(PersonStuckEvent.class, PersonStuckEventHandler.class, PersonStuckEventHandler::handleEvent),
+		new Dispatch<>(TransitDriverStartsEvent.class, TransitDriverStartsEventHandler.class, TransitDriverStartsEventHandler::handleEvent),
+		new Dispatch<>(VehicleEntersTrafficEvent.class, VehicleEntersTrafficEventHandler.class, VehicleEntersTrafficEventHandler::handleEvent),
+		new Dispatch<>(VehicleLeavesTrafficEvent.class, VehicleLeavesTrafficEventHandler.class, VehicleLeavesTrafficEventHandler::handleEvent),
+		new Dispatch<>(VehicleArrivesAtFacilityEvent.class, VehicleArrivesAtFacilityEventHandler.class, VehicleArrivesAtFacilityEventHandler::handleEvent),
+		new Dispatch<>(VehicleDepartsAtFacilityEvent.class, VehicleDepartsAtFacilityEventHandler.class, VehicleDepartsAtFacilityEventHandler::handleEvent),
+		new Dispatch<>(WarmEmissionEvent.class, WarmEmissionEventHandler.class, WarmEmissionEventHandler::handleEvent),
+		new Dispatch<>(ColdEmissionEvent.class, ColdEmissionEventHandler.class, ColdEmissionEventHandler::handleEvent),
+		new Dispatch<>(Event.class, BasicEventHandler.class, BasicEventHandler::handleEvent)
+	);
+
+	private final EventsManager delegate;
+	private final Path output;
+
+	/**
+	 * Wrapped handlers by original handler.
+	 */
+	private final Map<EventHandler, TimedHandler> wrappers = new IdentityHashMap<>();
+
+	/**
+	 * All wrappers with statistics that have not been written yet, including removed ones.
+	 */
+	private final List<TimedHandler> timed = new ArrayList<>();
+
+	/**
+	 * Number of registered instances per handler class, used to name the handlers.
+	 */
+	private final Map<Class<?>, Integer> instances = new HashMap<>();
+
+	private final LongAdder events = new LongAdder();
+
+	private int iteration = -1;
+	private long start;
+	private boolean headerWritten;
+
+	InstrumentedEventsManager(EventsManager delegate, Path output) {
+		this.delegate = delegate;
+		this.output = output;
+	}
+
+	@Override
+	public void processEvent(Event event) {
+		events.increment();
+		delegate.processEvent(event);
+	}
+
+	@Override
+	public void addHandler(EventHandler handler) {
+		TimedHandler wrapper;
+		synchronized (this) {
+			wrapper = wrappers.containsKey(handler) ? wrappers.get(handler) : wrap(handler);
+		}
+		delegate.addHandler(wrapper != null ? wrapper.proxy : handler);
+	}
+
+	@Override
+	public void removeHandler(EventHandler handler) {
+		TimedHandler wrapper;
+		synchronized (this) {
+			wrapper = wrappers.remove(handler);
+		}
+		delegate.removeHandler(wrapper != null ? wrapper.proxy : handler);
+	}
+
+	@Override
+	public void resetHandlers(int iteration) {
+		this.iteration = iteration;
+		delegate.resetHandlers(iteration);
+	}
+
+	@Override
+	public void initProcessing() {
+		start = System.nanoTime();
+		delegate.initProcessing();
+	}
+
+	@Override
+	public void afterSimStep(double time) {
+		delegate.afterSimStep(time);
+	}
+
+	@Override
+	public void finishProcessing() {
+		delegate.finishProcessing();
+		write(System.nanoTime() - start);
+	}
+
+	/**
+	 * Create the wrapper for a handler.
+	 *
+	 * @return the wrapper, or null if the handler implements interfaces that are not in {@link #DISPATCH}
+	 */
+	private TimedHandler wrap(EventHandler handler) {
+
+		Set<Class<?>> unknown = new LinkedHashSet<>();
+		for (Class<?> c = handler.getClass(); c != null; c = c.getSuperclass()) {
+			collectUnknownInterfaces(c, unknown);
+		}
+
+		Class<?> c = handler.getClass();
+		if (!unknown.isEmpty()) {
+			log.warn("Handler {} can not be instrumented, because of interfaces {}", c.getName(), unknown);
+			wrappers.put(handler, null);
+			return null;
+		}
+
+		int n = instances.merge(c, 1, Integer::sum);
+		TimedHandler wrapper = new TimedHandler(handler, n == 1 ? c.getName() : c.getName() + "#" + n);
+		wrappers.put(handler, wrapper);
+		timed.add(wrapper);
+		return wrapper;
+	}
+
+	private static void collectUnknownInterfaces(Class<?> c, Set<Class<?>> unknown) {
+		for (Class<?> i : c.getInterfaces()) {
+			if (i == EventHandler.class || !EventHandler.class.isAssignableFrom(i))
+				continue;
+
+			if (DISPATCH.stream().noneMatch(d -> d.handler == i))
+				unknown.add(i);
+		}
+
+		for (Class<?> i : c.getInterfaces()) {
+			collectUnknownInterfaces(i, unknown);
+		}
+	}
+
+	/**
+	 * Append the statistics of the current iteration and reset them.
+	 */
+	private synchronized void write(long duration) {
+
+		OpenOption[] options = headerWritten ?
+			new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND} :
+			new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE};
+
+		CSVFormat format = headerWritten ? CSVFormat.DEFAULT :
+			CSVFormat.DEFAULT.builder().setHeader("iteration", "handler", "eventType", "events", "time", "eventsPerSec", "p50", "p99").build();
+
+		try (BufferedWriter writer = Files.newBufferedWriter(output, options); CSVPrinter p = new CSVPrinter(writer, format)) {
+
+			long n = events.sumThenReset();
+			p.printRecord(iteration, "total", "all", n, duration / 1_000_000, perSecond(n, duration), "", "");
+
+			for (TimedHandler handler : timed) {
+				for (Target target : handler.targets) {
+					Stats s = target.stats;
+					if (s.count == 0)
+						continue;
+
+					p.printRecord(iteration, handler.name, target.eventType(), s.count, s.time / 1_000_000, perSecond(s.count, s.time),
+						s.percentile(0.5), s.percentile(0.99));
+					s.reset();
+				}
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		// Statistics of removed handlers are written once
+		timed.removeIf(h -> wrappers.get(h.handler) != h);
+
+		headerWritten = true;
+		log.info("Wrote event handler timings of iteration {} to {}", iteration, output);
+	}
+
+	private static long perSecond(long count, long nanos) {
+		return nanos > 0 ? (long) (count / (nanos / 1e9)) : 0;
+	}
+
+	/**
+	 * Handler interface and the event type it handles.
+	 */
+	private record Dispatch<E extends Event, H extends EventHandler>(Class<E> event, Class<H> handler, BiConsumer<H, E> call) {
+
+		@SuppressWarnings("unchecked")
+		private void invoke(EventHandler h, Event e) {
+			call.accept((H) h, (E) e);
+		}
+	}
+
+	/**
+	 * A handler interface of one handler and its statistics.
+	 */
+	private record Target(Dispatch<?, ?> dispatch, Stats stats) {
+
+		private String eventType() {
+			return dispatch.event == Event.class ? "all" : dispatch.event.getSimpleName();
+		}
+	}
+
+	/**
+	 * Calls the handler methods that are invoked on the proxy and measures them.
+	 */
+	private static final class TimedHandler implements InvocationHandler {
+
+		private final EventHandler handler;
+		private final String name;
+		private final Target[] targets;
+		private final EventHandler proxy;
+
+		/**
+		 * Targets by method of the proxy. The proxy class passes the same method instances on every call.
+		 */
+		private final Map<Method, Target> methods = new IdentityHashMap<>();
+
+		private TimedHandler(EventHandler handler, String name) {
+			this.handler = handler;
+			this.name = name;
+
+			List<Target> list = new ArrayList<>();
+			for (Dispatch<?, ?> d : DISPATCH) {
+				if (d.handler.isInstance(handler))
+					list.add(new Target(d, new Stats()));
+			}
+
+			this.targets = list.toArray(Target[]::new);
+			this.proxy = (EventHandler) Proxy.newProxyInstance(handler.getClass().getClassLoader(),
+				list.stream().map(t -> t.dispatch.handler).toArray(Class<?>[]::new), this);
+		}
+
+		@Override
+		public Object invoke(Object p, Method method, Object[] args) {
+
+			Target target = methods.get(method);
+			if (target == null) {
+				if (!method.getName().equals("handleEvent") || args == null || args.length != 1)
+					return invokeOther(p, method, args);
+
+				target = findTarget(method);
+			}
+
+			long start = System.nanoTime();
+			target.dispatch.invoke(handler, (Event) args[0]);
+			target.stats.record(System.nanoTime() - start);
+			return null;
+		}
+
+		private Target findTarget(Method method) {
+			for (Target t : targets) {
+				if (t.dispatch.handler == method.getDeclaringClass() && t.dispatch.event == method.getParameterTypes()[0]) {
+					methods.put(method, t);
+					return t;
+				}
+			}
+			throw new IllegalStateException("No handler interface for " + method);
+		}
+
+		private Object invokeOther(Object p, Method method, Object[] args) {
+			return switch (method.getName()) {
+				case "reset" -> {
+					handler.reset((Integer) args[0]);
+					yield null;
+				}
+				case "equals" -> p == args[0];
+				case "hashCode" -> System.identityHashCode(p);
+				case "toString" -> handler.toString();
+				default -> throw new UnsupportedOperationException("Method " + method + " is not supported by the instrumented handler of " + name);
+			};
+		}
+	}
+
+	/**
+	 * Count, cumulative time and latency histogram of one handler and event type.
+	 */
+	private static final class Stats {
+
+		private long count;
+		private long time;
+
+		/**
+		 * Bucket i contains durations in [2^i, 2^(i+1)) ns.
+		 */
+		private final long[] histogram = new long[64];
+
+		private void record(long nanos) {
+			count++;
+			time += nanos;
+			histogram[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+		}
+
+		/**
+		 * Upper bound of the bucket containing the given percentile, in microseconds.
+		 */
+		private double percentile(double p) {
+			long rank = (long) Math.ceil(count * p);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= rank)
+					return Math.pow(2, i + 1) / 1000;
+			}
+			return Double.NaN;
+		}
+
+		private void reset() {
+			count = 0;
+			time = 0;
+			Arrays.fill(histogram, 0);
+		}
+	}
+}
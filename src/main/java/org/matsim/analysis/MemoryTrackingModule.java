@@ -0,0 +1,275 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.AfterMobsimEvent;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.AfterMobsimListener;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This module records the heap usage at the phase boundaries of each iteration and writes it to {@code memory.csv}.
+ * The heap after GC is taken from the notification of the last garbage collection, which is also current for concurrent collectors like G1.
+ * <p>
+ * The heap occupied after the last garbage collection is extrapolated to the last iteration. If this projection exceeds
+ * the maximum heap size, a warning is logged, or the run is aborted if the module is configured to fail.
+ */
+public final class MemoryTrackingModule extends AbstractModule {
+
+	/**
+	 * Warn if the projected peak exceeds this fraction of the maximum heap.
+	 */
+	private static final double WARN_THRESHOLD = 0.9;
+
+	private final boolean failOnProjectedOom;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param failOnProjectedOom abort the run if the projected heap usage exceeds the maximum heap size
+	 */
+	public MemoryTrackingModule(boolean failOnProjectedOom) {
+		this.failOnProjectedOom = failOnProjectedOom;
+	}
+
+	@Override
+	public void install() {
+		addControlerListenerBinding().toInstance(new Tracker(failOnProjectedOom));
+	}
+
+	private static final class Tracker implements IterationStartsListener, BeforeMobsimListener, AfterMobsimListener, IterationEndsListener,
+		ShutdownListener, NotificationListener {
+
+		private static final Logger log = LogManager.getLogger(Tracker.class);
+
+		private final boolean failOnProjectedOom;
+
+		@Inject
+		private Config config;
+		@Inject
+		private Population population;
+		@Inject
+		private OutputDirectoryHierarchy outDir;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		/**
+		 * Names of the heap memory pools.
+		 */
+		private final Set<String> heapPools = new HashSet<>();
+
+		/**
+		 * Heap usage after the last garbage collection, updated by the GC notification thread.
+		 */
+		private volatile long afterGc;
+
+		private boolean headerWritten;
+
+		private long lastAllocated = -1;
+		private long lastTime;
+
+		private int persons;
+		private long plans;
+
+		/**
+		 * Heap after GC at the end of the first tracked iteration, used for the extrapolation.
+		 */
+		private int firstIteration = -1;
+		private long firstAfterGc;
+		private long maxAfterGc;
+
+		private Tracker(boolean failOnProjectedOom) {
+			this.failOnProjectedOom = failOnProjectedOom;
+
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					heapPools.add(pool.getName());
+			}
+
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter emitter)
+					emitter.addNotificationListener(this, null, null);
+			}
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+				return;
+
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+
+			long used = 0;
+			for (var pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+				if (heapPools.contains(pool.getKey()))
+					used += pool.getValue().getUsed();
+			}
+
+			afterGc = used;
+		}
+
+		@Override
+		public void notifyShutdown(ShutdownEvent e) {
+			// Listeners are kept by the platform beans, so they need to be removed if several runs share the JVM
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter emitter) {
+					try {
+						emitter.removeNotificationListener(this);
+					} catch (ListenerNotFoundException ex) {
+						// not registered
+					}
+				}
+			}
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent e) {
+			persons = population.getPersons().size();
+			plans = 0;
+			for (Person person : population.getPersons().values()) {
+				plans += person.getPlans().size();
+			}
+
+			record(e.getIteration(), "iterationStarts");
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent e) {
+			record(e.getIteration(), "beforeMobsim");
+		}
+
+		@Override
+		public void notifyAfterMobsim(AfterMobsimEvent e) {
+			record(e.getIteration(), "afterMobsim");
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent e) {
+			long afterGc = record(e.getIteration(), "iterationEnds");
+			checkProjection(e.getIteration(), afterGc);
+		}
+
+		/**
+		 * Write one sample.
+		 *
+		 * @return heap usage after the last GC, 0 if there has been none yet
+		 */
+		private long record(int iteration, String phase) {
+
+			long now = System.nanoTime();
+			long heapUsed = memory.getHeapMemoryUsage().getUsed();
+
+			long afterGc = this.afterGc;
+			long oldGen = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() != MemoryType.HEAP)
+					continue;
+
+				String name = pool.getName();
+				if (name.contains("Old") || name.contains("Tenured"))
+					oldGen += pool.getUsage().getUsed();
+			}
+
+			long gcCount = 0;
+			long gcTime = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(gc.getCollectionCount(), 0);
+				gcTime += Math.max(gc.getCollectionTime(), 0);
+			}
+
+			long allocated = threads instanceof com.sun.management.ThreadMXBean t ? t.getTotalThreadAllocatedBytes() : -1;
+			double allocationRate = lastAllocated >= 0 && allocated >= 0 && now > lastTime ?
+				(allocated - lastAllocated) / ((now - lastTime) / 1e9) : Double.NaN;
+
+			lastAllocated = allocated;
+			lastTime = now;
+
+			maxAfterGc = Math.max(maxAfterGc, afterGc);
+
+			write(iteration, phase, heapUsed, afterGc, oldGen, allocationRate, gcCount, gcTime,
+				persons > 0 ? afterGc / persons : 0, plans > 0 ? afterGc / plans : 0);
+
+			return afterGc;
+		}
+
+		/**
+		 * Extrapolate the heap usage after GC linearly to the last iteration.
+		 */
+		private void checkProjection(int iteration, long afterGc) {
+
+			if (firstIteration < 0) {
+				firstIteration = iteration;
+				firstAfterGc = afterGc;
+			}
+
+			long max = Runtime.getRuntime().maxMemory();
+			if (max == Long.MAX_VALUE)
+				return;
+
+			double slope = iteration > firstIteration ? Math.max(0, (double) (afterGc - firstAfterGc) / (iteration - firstIteration)) : 0;
+			double projected = maxAfterGc + slope * (config.controller().getLastIteration() - iteration);
+
+			if (projected > max) {
+				String msg = String.format("Projected heap usage of %d MB exceeds maximum heap size of %d MB", (long) projected >> 20, max >> 20);
+				if (failOnProjectedOom)
+					throw new IllegalStateException(msg);
+
+				log.warn(msg);
+			} else if (projected > WARN_THRESHOLD * max) {
+				log.warn("Projected heap usage of {} MB is close to maximum heap size of {} MB", (long) projected >> 20, max >> 20);
+			}
+		}
+
+		private void write(Object... row) {
+
+			Path filename = Paths.get(outDir.getOutputFilename("memory.csv"));
+			OpenOption[] options = headerWritten ?
+				new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND} :
+				new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE};
+
+			CSVFormat format = headerWritten ? CSVFormat.DEFAULT : CSVFormat.DEFAULT.builder()
+				.setHeader("iteration", "phase", "heapUsed", "heapAfterGc", "oldGenUsed", "allocationRate", "gcCount", "gcTime",
+					"bytesPerPerson", "bytesPerPlan")
+				.build();
+
+			try (BufferedWriter writer = Files.newBufferedWriter(filename, options); var p = new CSVPrinter(writer, format)) {
+				p.printRecord(row);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+
+			headerWritten = true;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.core.controler.listener.StartupListener;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.mobsim.framework.events.MobsimAfterSimStepEvent;
+import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimAfterSimStepListener;
+import org.matsim.core.mobsim.framework.listeners.MobsimInitializedListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This module exposes the progress of a running simulation in the Prometheus text format.
+ * Metrics are served on {@code http://localhost:<port>/metrics} and/or written periodically to a file,
+ * which can be picked up by the textfile collector of the node exporter.
+ */
+public final class MetricsModule extends AbstractModule {
+
+	private final int port;
+	private final Path file;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param port port of the local http server, or 0 to not start a server
+	 * @param file file to write the metrics to every few seconds, or null to not write a file
+	 */
+	public MetricsModule(int port, Path file) {
+		this.port = port;
+		this.file = file;
+	}
+
+	@Override
+	public void install() {
+		Metrics metrics = new Metrics(port, file);
+		addControlerListenerBinding().toInstance(metrics);
+		addMobsimListenerBinding().toInstance(metrics);
+		addEventHandlerBinding().toInstance(metrics);
+	}
+
+	private static final class Metrics implements StartupListener, IterationStartsListener, IterationEndsListener, ShutdownListener,
+		MobsimInitializedListener, MobsimAfterSimStepListener, BasicEventHandler {
+
+		private static final Logger log = LogManager.getLogger(Metrics.class);
+
+		/**
+		 * Interval of writing the metrics file in seconds.
+		 */
+		private static final int FILE_INTERVAL = 15;
+
+		private final int port;
+		private final Path file;
+
+		@Inject
+		private Population population;
+
+		private HttpServer server;
+		private ScheduledExecutorService executor;
+
+		private final LongAdder events = new LongAdder();
+		private final long startTime = System.nanoTime();
+
+		private volatile int iteration = -1;
+		private volatile double simTime;
+		private volatile double simStart = Double.NaN;
+		private volatile long mobsimStart;
+
+		private volatile double scoreExecuted = Double.NaN;
+		private volatile double scoreBest = Double.NaN;
+		private volatile double scoreWorst = Double.NaN;
+
+		/**
+		 * Separate rate state for the server and the file, so that each reports the rate since its own previous output.
+		 */
+		private final Rate scrapeRate = new Rate();
+		private final Rate fileRate = new Rate();
+
+		private Metrics(int port, Path file) {
+			this.port = port;
+			this.file = file;
+		}
+
+		@Override
+		public void notifyStartup(StartupEvent e) {
+			try {
+				if (port > 0) {
+					server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+					server.createContext("/metrics", exchange -> {
+						byte[] body = render(scrapeRate).getBytes(StandardCharsets.UTF_8);
+						exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+						exchange.sendResponseHeaders(200, body.length);
+						try (OutputStream out = exchange.getResponseBody()) {
+							out.write(body);
+						}
+					});
+					server.start();
+					log.info("Serving metrics on http://localhost:{}/metrics", port);
+				}
+			} catch (IOException ex) {
+				throw new UncheckedIOException("Could not start metrics server on port " + port, ex);
+			}
+
+			if (file != null) {
+				executor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "metrics-writer");
+					t.setDaemon(true);
+					return t;
+				});
+				executor.scheduleAtFixedRate(this::writeFile, 0, FILE_INTERVAL, TimeUnit.SECONDS);
+			}
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent e) {
+			iteration = e.getIteration();
+		}
+
+		@Override
+		public void notifyMobsimInitialized(MobsimInitializedEvent e) {
+			mobsimStart = System.nanoTime();
+			simStart = Double.NaN;
+		}
+
+		@Override
+		public void notifyMobsimAfterSimStep(MobsimAfterSimStepEvent e) {
+			if (Double.isNaN(simStart))
+				simStart = e.getSimulationTime();
+
+			simTime = e.getSimulationTime();
+		}
+
+		@Override
+		public void handleEvent(Event event) {
+			events.increment();
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent e) {
+
+			double executed = 0;
+			double best = 0;
+			double worst = 0;
+			int n = 0;
+
+			for (Person person : population.getPersons().values()) {
+				Double selected = person.getSelectedPlan() != null ? person.getSelectedPlan().getScore() : null;
+				if (selected == null)
+					continue;
+
+				double max = Double.NEGATIVE_INFINITY;
+				double min = Double.POSITIVE_INFINITY;
+				for (Plan plan : person.getPlans()) {
+					if (plan.getScore() != null) {
+						max = Math.max(max, plan.getScore());
+						min = Math.min(min, plan.getScore());
+					}
+				}
+
+				executed += selected;
+				best += max;
+				worst += min;
+				n++;
+			}
+
+			scoreExecuted = n > 0 ? executed / n : Double.NaN;
+			scoreBest = n > 0 ? best / n : Double.NaN;
+			scoreWorst = n > 0 ? worst / n : Double.NaN;
+		}
+
+		@Override
+		public void notifyShutdown(ShutdownEvent e) {
+			if (server != null)
+				server.stop(0);
+
+			if (executor != null) {
+				executor.shutdownNow();
+				writeFile();
+			}
+		}
+
+		/**
+		 * Render all metrics in the Prometheus text format.
+		 *
+		 * @param rate rate state of the consumer the metrics are rendered for
+		 */
+		private String render(Rate rate) {
+
+			long now = System.nanoTime();
+			long n = events.sum();
+			double eventRate = rate.update(n, now);
+
+			double rtr = Double.isNaN(simStart) ? Double.NaN : (simTime - simStart) / ((now - mobsimStart) / 1e9);
+
+			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+			StringBuilder sb = new StringBuilder();
+			gauge(sb, "matsim_iteration", "Current iteration", iteration);
+			gauge(sb, "matsim_uptime_seconds", "Wall time since the start of the run", (now - startTime) / 1e9);
+			gauge(sb, "matsim_sim_time_seconds", "Current simulation time of the mobsim", simTime);
+			gauge(sb, "matsim_real_time_ratio", "Simulated seconds per wall clock second in the current mobsim", rtr);
+			counter(sb, "matsim_events_total", "Number of processed events", n);
+			gauge(sb, "matsim_events_per_second", "Processed events per second since the previous scrape or file write", eventRate);
+			gauge(sb, "matsim_score_executed", "Average score of the selected plans after the last iteration", scoreExecuted);
+			gauge(sb, "matsim_score_best", "Average score of the best plans after the last iteration", scoreBest);
+			gauge(sb, "matsim_score_worst", "Average score of the worst plans after the last iteration", scoreWorst);
+			gauge(sb, "jvm_heap_used_bytes", "Used heap memory", heap.getUsed());
+			gauge(sb, "jvm_heap_max_bytes", "Maximum heap memory", heap.getMax());
+			gauge(sb, "jvm_threads", "Number of live threads", ManagementFactory.getThreadMXBean().getThreadCount());
+			return sb.toString();
+		}
+
+		private static void gauge(StringBuilder sb, String name, String help, double value) {
+			metric(sb, name, help, "gauge", value);
+		}
+
+		private static void counter(StringBuilder sb, String name, String help, double value) {
+			metric(sb, name, help, "counter", value);
+		}
+
+		private static void metric(StringBuilder sb, String name, String help, String type, double value) {
+			sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			sb.append(name).append(' ').append(format(value)).append('\n');
+		}
+
+		private static String format(double value) {
+			if (Double.isNaN(value))
+				return "NaN";
+			if (Double.isInfinite(value))
+				return value > 0 ? "+Inf" : "-Inf";
+
+			return Double.toString(value);
+		}
+
+		private void writeFile() {
+			// Write to a temporary file first, so that readers never see a partial file
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try {
+				Files.writeString(tmp, render(fileRate));
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				log.warn("Could not write metrics to {}", file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Event count and time of the last rate computation of one consumer.
+	 */
+	private static final class Rate {
+
+		private long lastEvents;
+		private long lastTime = System.nanoTime();
+		private double rate;
+
+		private synchronized double update(long events, long now) {
+			if (now > lastTime) {
+				rate = (events - lastEvents) / ((now - lastTime) / 1e9);
+				lastEvents = events;
+				lastTime = now;
+			}
+			return rate;
+		}
+	}
+}
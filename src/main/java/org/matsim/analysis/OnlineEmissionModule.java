@@ -0,0 +1,146 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * This module computes emissions during the last iteration of a run and writes the emission summary, so that the events do not need to be re-read afterward.
+ * The {@link EmissionModule} is attached to a separate events manager, which receives all events of the last iteration. The resulting emission events are aggregated in memory.
+ * <p>
+ * Emissions are computed for the scenario and the transit vehicles, which are combined in one container. This corresponds to the output vehicles,
+ * which are used when emissions are computed after the run, so that both summaries contain the same vehicle categories.
+ */
+public final class OnlineEmissionModule extends AbstractModule {
+
+	private final EmissionDataProcessor.SummaryFormat format;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param format format of the written emission summary
+	 */
+	public OnlineEmissionModule(EmissionDataProcessor.SummaryFormat format) {
+		this.format = format;
+	}
+
+	@Override
+	public void install() {
+		addControlerListenerBinding().toInstance(new LastIterationEmissions(format));
+	}
+
+	/**
+	 * Combine vehicles and types of several containers into a new one. The first container wins if ids are duplicated.
+	 */
+	static Vehicles combine(Vehicles... containers) {
+		Vehicles combined = VehicleUtils.createVehiclesContainer();
+		for (Vehicles c : containers) {
+			for (VehicleType type : c.getVehicleTypes().values()) {
+				if (!combined.getVehicleTypes().containsKey(type.getId()))
+					combined.addVehicleType(type);
+			}
+
+			for (Vehicle vehicle : c.getVehicles().values()) {
+				if (!combined.getVehicles().containsKey(vehicle.getId()))
+					combined.addVehicle(vehicle);
+			}
+		}
+		return combined;
+	}
+
+	private static final class LastIterationEmissions implements IterationStartsListener, IterationEndsListener {
+
+		private static final Logger log = LogManager.getLogger(LastIterationEmissions.class);
+
+		private final EmissionDataProcessor.SummaryFormat format;
+
+		@Inject
+		private Config config;
+		@Inject
+		private Scenario scenario;
+		@Inject
+		private EventsManager eventsManager;
+		@Inject
+		private OutputDirectoryHierarchy outDir;
+
+		private EventsManager emissionEvents;
+		private BasicEventHandler forward;
+		private EmissionSummaryHandler summary;
+
+		private LastIterationEmissions(EmissionDataProcessor.SummaryFormat format) {
+			this.format = format;
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent e) {
+
+			// using e.isLastIteration, does not yield the correct result somehow
+			if (config.controller().getLastIteration() != e.getIteration())
+				return;
+
+			log.info("Computing emissions online in iteration {}", e.getIteration());
+
+			// Transit vehicles are kept separately during the simulation, but are part of the output vehicles used after the run
+			Vehicles vehicles = combine(scenario.getVehicles(), scenario.getTransitVehicles());
+
+			Scenario emissionScenario = new ScenarioUtils.ScenarioBuilder(config)
+				.setNetwork(scenario.getNetwork())
+				.setVehicles(vehicles)
+				.build();
+
+			emissionEvents = EventsUtils.createEventsManager();
+			summary = new EmissionSummaryHandler(vehicles);
+			emissionEvents.addHandler(summary);
+
+			// The emission module registers its handlers at the given events manager
+			new EmissionModule(emissionScenario, emissionEvents);
+
+			forward = emissionEvents::processEvent;
+			emissionEvents.initProcessing();
+			eventsManager.addHandler(forward);
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent e) {
+
+			if (emissionEvents == null)
+				return;
+
+			eventsManager.removeHandler(forward);
+			emissionEvents.finishProcessing();
+
+			String output = outDir.getOutputFilename("emissions_summary");
+			try {
+				EmissionDataProcessor.saveSummary(summary.getData(), output, format);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+
+			log.info("Emission summary written to {}", output);
+
+			emissionEvents = null;
+			forward = null;
+			summary = null;
+		}
+	}
+}
@@ -7,23 +7,30 @@ import org.apache.commons.csv.CSVPrinter;
 import org.matsim.core.config.Config;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
-import org.matsim.core.controler.events.BeforeMobsimEvent;
-import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.events.*;
+import org.matsim.core.controler.listener.*;
 import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
 import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
 import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
 import org.matsim.core.mobsim.framework.listeners.MobsimInitializedListener;
 
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.*;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This module measures the runtime of the QSim and writes it to a CSV file.
+ * Additionally, the duration of each controler phase is measured for every iteration, written to {@code phase_timings.csv}
+ * and emitted as JFR events, which are recorded when a flight recording is active.
  */
 public final class QsimTimingModule extends AbstractModule {
 
@@ -34,6 +41,10 @@ public final class QsimTimingModule extends AbstractModule {
 		bind(Timer.class).in(Singleton.class);
 		addMobsimListenerBinding().to(Timer.class);
 		addControlerListenerBinding().to(CheckForLastIteration.class);
+
+		bind(PhaseTimer.class).in(Singleton.class);
+		addControlerListenerBinding().to(PhaseTimer.class);
+		addMobsimListenerBinding().to(PhaseTimer.class);
 	}
 
 	private static final class CheckForLastIteration implements BeforeMobsimListener {
@@ -101,4 +112,143 @@ public final class QsimTimingModule extends AbstractModule {
 				.build();
 		}
 	}
+
+	/**
+	 * Measures the time between the controler and mobsim listener calls of each iteration.
+	 * Phase boundaries are the points where this listener is notified. Other listeners of the same type may run before or after it.
+	 * <p>
+	 * Only whole phases are measured. Replanning is not split by strategy and the analysis modules and output writing are not timed
+	 * on their own, their time is part of the replanning and iteration end phases.
+	 */
+	private static final class PhaseTimer implements IterationStartsListener, ReplanningListener, BeforeMobsimListener, AfterMobsimListener,
+		ScoringListener, IterationEndsListener, ShutdownListener, MobsimInitializedListener, MobsimBeforeCleanupListener {
+
+		private final OutputDirectoryHierarchy outDir;
+		private final List<Object[]> rows = new ArrayList<>();
+
+		private boolean headerWritten;
+
+		private int iteration;
+		private String phase;
+		private long start;
+		private PhaseEvent event;
+
+		@Inject
+		private PhaseTimer(OutputDirectoryHierarchy outDir) {
+			this.outDir = outDir;
+		}
+
+		/**
+		 * End the current phase and start the next one.
+		 */
+		private void next(int nextIteration, String nextPhase) {
+			long now = System.nanoTime();
+
+			if (phase != null) {
+				rows.add(new Object[]{iteration, phase, (now - start) / 1_000_000});
+				event.end();
+				event.commit();
+			}
+
+			iteration = nextIteration;
+			phase = nextPhase;
+			start = now;
+
+			if (nextPhase != null) {
+				event = new PhaseEvent();
+				event.iteration = nextIteration;
+				event.phase = nextPhase;
+				event.begin();
+			}
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent e) {
+			// Output of the previous iteration ends here
+			next(e.getIteration(), "iterationStart");
+			write();
+		}
+
+		@Override
+		public void notifyReplanning(ReplanningEvent e) {
+			next(e.getIteration(), "replanning");
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent e) {
+			next(e.getIteration(), "mobsimPrepare");
+		}
+
+		@Override
+		public void notifyMobsimInitialized(MobsimInitializedEvent e) {
+			next(iteration, "mobsim");
+		}
+
+		@Override
+		public void notifyMobsimBeforeCleanup(MobsimBeforeCleanupEvent e) {
+			// includes flushing the remaining events
+			next(iteration, "mobsimCleanup");
+		}
+
+		@Override
+		public void notifyAfterMobsim(AfterMobsimEvent e) {
+			next(e.getIteration(), "afterMobsim");
+		}
+
+		@Override
+		public void notifyScoring(ScoringEvent e) {
+			next(e.getIteration(), "scoring");
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent e) {
+			// analysis and output writing of the iteration
+			next(e.getIteration(), "iterationEnd");
+		}
+
+		@Override
+		public void notifyShutdown(ShutdownEvent e) {
+			next(iteration, null);
+			write();
+		}
+
+		private void write() {
+
+			if (rows.isEmpty())
+				return;
+
+			Path filename = Paths.get(outDir.getOutputFilename("phase_timings.csv"));
+			OpenOption[] options = headerWritten ?
+				new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND} :
+				new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE};
+
+			CSVFormat format = headerWritten ? CSVFormat.DEFAULT : Timer.createWriteFormat("iteration", "phase", "duration_ms");
+
+			try (BufferedWriter writer = Files.newBufferedWriter(filename, options); var p = new CSVPrinter(writer, format)) {
+				for (Object[] row : rows) {
+					p.printRecord(row);
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+
+			headerWritten = true;
+			rows.clear();
+		}
+	}
+
+	/**
+	 * JFR event for one phase of an iteration.
+	 */
+	@Name("org.matsim.Phase")
+	@Label("MATSim Phase")
+	@Category("MATSim")
+	static final class PhaseEvent extends Event {
+
+		@Label("Iteration")
+		int iteration;
+
+		@Label("Phase")
+		String phase;
+	}
 }
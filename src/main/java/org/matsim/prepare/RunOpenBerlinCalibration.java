@@ -4,6 +4,7 @@ import com.google.inject.Inject;
 import com.google.inject.TypeLiteral;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.MetricsModule;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
@@ -95,7 +96,7 @@ import java.util.stream.Collectors;
 	GenerateSmallScaleCommercialTrafficDemand.class, CreateDataDistributionOfStructureData.class,
 	RunCountOptimization.class, SelectPlansFromIndex.class, ExtractPlanIndexFromType.class, AssignReferencePopulation.class,
 	ExtractRelevantFreightTrips.class, CheckCarAvailability.class, FixSubtourModes.class, ComputeTripChoices.class, ComputePlanChoices.class,
-	ApplyNetworkParams.class, SetCarAvailabilityByAge.class, CreateDrtVehicles.class, EndlessCircleLineScheduleModifier.class
+	ApplyNetworkParams.class, SetCarAvailabilityByAge.class, CreateDrtVehicles.class, EndlessCircleLineScheduleModifier.class, CreateMicrocarPlans.class
 })
 public class RunOpenBerlinCalibration extends MATSimApplication {
 
@@ -126,6 +127,12 @@ public class RunOpenBerlinCalibration extends MATSimApplication {
 	@CommandLine.Option(names = "--plan-index", description = "Only use one plan with specified index")
 	private Integer planIndex;
 
+	@CommandLine.Option(names = "--metrics-port", description = "Serve live metrics in Prometheus format on this port of localhost.", defaultValue = "0")
+	private int metricsPort;
+
+	@CommandLine.Option(names = "--metrics-file", description = "Periodically write live metrics in Prometheus format to this file.")
+	private Path metricsFile;
+
 	public RunOpenBerlinCalibration() {
 		super("input/v6.4/berlin-v6.4.config.xml");
 	}
@@ -480,6 +487,9 @@ public class RunOpenBerlinCalibration extends MATSimApplication {
 		if (ConfigUtils.hasModule(controler.getConfig(), AdvancedScoringConfigGroup.class)) {
 			controler.addOverridingModule(new AdvancedScoringModule());
 		}
+
+		if (metricsPort > 0 || metricsFile != null)
+			controler.addOverridingModule(new MetricsModule(metricsPort, metricsFile));
 	}
 
 	@Override
@@ -11,6 +11,11 @@ import org.optaplanner.core.api.score.buildin.simplebigdecimal.SimpleBigDecimalS
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Planning problem containing all entities and information.
@@ -18,6 +23,11 @@ import java.util.*;
 @PlanningSolution(solutionCloner = PlanAssignmentProblem.Cloner.class)
 public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 
+	/**
+	 * Number of persons processed by one task during {@link #iterate(int, double, double, double, int)}.
+	 */
+	private static final int CHUNK_SIZE = 4096;
+
 	final int[] counts;
 	final ErrorMetric metric;
 	private final int maxK;
@@ -78,52 +88,100 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 
 	/**
 	 * Iterative pre optimization using change plan exp beta logic.
+	 * <p>
+	 * In each iteration, all persons choose their plan based on the observed counts at the start of the iteration.
+	 * These decisions are independent of each other and are computed in parallel on chunks of persons.
+	 * Changes of the observed counts are collected as atomic deltas and applied after all chunks are done.
+	 * Each chunk uses its own random generator, split from a fixed seed, so the result does not depend on the number of threads.
 	 */
-	public void iterate(int n, double prob, double beta, double w) {
+	public void iterate(int n, double prob, double beta, double w, int threads) throws InterruptedException {
 
 		ScoreCalculator calc = new ScoreCalculator();
 		calc.resetWorkingSolution(this);
 		score = calc.calculateScore();
 
-		RunCountOptimization.log.info("Iterating {} iters with prob {} and beta {}", n, prob, beta);
+		RunCountOptimization.log.info("Iterating {} iters with prob {} and beta {} using {} threads", n, prob, beta, threads);
 
 		SplittableRandom rnd = new SplittableRandom(0);
 
+		AtomicIntegerArray delta = new AtomicIntegerArray(counts.length);
+
 		double step = prob / n;
 
 		double best = score.score().doubleValue();
 		int noBest = 0;
 
-		for (int i = 0; i < n; i++) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < n; i++) {
 
-			calc.resetWorkingSolution(this);
-			score = calc.calculateScore();
+				score = calc.calculateScore();
 
-			if (i % 100 == 0)
-				RunCountOptimization.log.info("Iteration {} score: {}", i, score);
+				if (i % 100 == 0)
+					RunCountOptimization.log.info("Iteration {} score: {}", i, score);
 
-			if (score.score().doubleValue() >= best) {
-				best = score.score().doubleValue();
-				noBest = 0;
-			} else {
-				noBest++;
-			}
+				if (score.score().doubleValue() >= best) {
+					best = score.score().doubleValue();
+					noBest = 0;
+				} else {
+					noBest++;
+				}
+
+				if (noBest >= 30) {
+					RunCountOptimization.log.info("Stopping after {} with score: {}", i, score);
+					break;
+				}
+
+				// Best p and beta are not known, so it will be annealed
+				double p = prob - step * i;
+				double b = beta - (beta / n) * i;
+
+				List<Future<?>> futures = new ArrayList<>();
+				for (int from = 0; from < persons.size(); from += CHUNK_SIZE) {
+					List<PlanPerson> chunk = persons.subList(from, Math.min(from + CHUNK_SIZE, persons.size()));
+					SplittableRandom chunkRnd = rnd.split();
+					futures.add(executor.submit(() -> changePlans(chunk, calc, delta, p, b, w, chunkRnd)));
+				}
 
-			if (noBest >= 30) {
-				RunCountOptimization.log.info("Stopping after {} with score: {}", i, score);
-				break;
+				for (Future<?> f : futures) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						throw new IllegalStateException("Error during plan iteration", e.getCause());
+					}
+				}
+
+				calc.applyDelta(delta);
 			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Change plans of a chunk of persons and record the changes of the observed counts.
+	 */
+	private static void changePlans(List<PlanPerson> chunk, ScoreCalculator calc, AtomicIntegerArray delta,
+									double p, double b, double w, SplittableRandom rnd) {
+		for (PlanPerson person : chunk) {
 
-			// Best p and beta are not known, so it will be annealed
-			double p = prob - step * i;
-			double b = beta - (beta / n) * i;
+			if (rnd.nextDouble() < p) {
+				person.setScore(calc);
 
-			for (PlanPerson person : persons) {
+				int k = person.getK();
+				int other = person.changePlanExpBeta(b, w, rnd);
+				if (other == k)
+					continue;
 
-				if (rnd.nextDouble() < p) {
-					person.setScore(calc);
-					person.setK(person.changePlanExpBeta(b, w, rnd));
+				for (int i = person.offsets[k]; i < person.offsets[k + 1]; i++) {
+					delta.addAndGet(person.keys[i], -person.values[i]);
 				}
+
+				for (int i = person.offsets[other]; i < person.offsets[other + 1]; i++) {
+					delta.addAndGet(person.keys[i], person.values[i]);
+				}
+
+				person.setK(other);
 			}
 		}
 	}
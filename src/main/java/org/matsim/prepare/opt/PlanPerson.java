@@ -1,7 +1,6 @@
 package org.matsim.prepare.opt;
 
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
-import it.unimi.dsi.fastutil.ints.Int2IntMaps;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.optaplanner.core.api.domain.entity.PlanningEntity;
@@ -18,11 +17,6 @@ import java.util.SplittableRandom;
 @PlanningEntity(difficultyComparatorClass = PlanPerson.DifficultyComparator.class)
 public final class PlanPerson {
 
-	/**
-	 * A plan that does not affect any count stations.
-	 */
-	public static final Int2IntMap NOOP_PLAN = Int2IntMaps.EMPTY_MAP;
-
 	@PlanningId
 	private final Id<Person> id;
 
@@ -38,9 +32,19 @@ public final class PlanPerson {
 	private Integer k;
 
 	/**
-	 * Plans and their count increment.
+	 * Start of each plan in {@link #keys} and {@link #values}. The entries of plan i are in the range offsets[i] until offsets[i + 1].
+	 */
+	final int[] offsets;
+
+	/**
+	 * Count indices of all plans, sorted within each plan.
+	 */
+	final int[] keys;
+
+	/**
+	 * Count increments of all plans.
 	 */
-	private final Int2IntMap[] plans;
+	final int[] values;
 
 	/**
 	 * Scores of each plan.
@@ -52,16 +56,42 @@ public final class PlanPerson {
 	 */
 	final int maxImpact;
 
+	/**
+	 * Create a person from the count increments of each plan. Empty maps are plans that do not affect any count station.
+	 */
 	public PlanPerson(Id<Person> id, int offset, Int2IntMap[] plans) {
 		this.id = id;
 		this.offset = offset;
-		this.plans = plans;
 		this.k = 0;
 
-		int max = 0;
+		int size = 0;
 		for (Int2IntMap plan : plans) {
-			max = Math.max(max, plan.values().intStream().sum());
+			size += plan.size();
 		}
+
+		this.offsets = new int[plans.length + 1];
+		this.keys = new int[size];
+		this.values = new int[size];
+
+		int max = 0;
+		int j = 0;
+		for (int i = 0; i < plans.length; i++) {
+			offsets[i] = j;
+
+			int[] planKeys = plans[i].keySet().toIntArray();
+			Arrays.sort(planKeys);
+
+			int sum = 0;
+			for (int key : planKeys) {
+				keys[j] = key;
+				values[j] = plans[i].get(key);
+				sum += values[j++];
+			}
+
+			max = Math.max(max, sum);
+		}
+		offsets[plans.length] = j;
+
 		this.scores = new double[plans.length];
 		Arrays.fill(scores, Float.NaN);
 
@@ -71,11 +101,13 @@ public final class PlanPerson {
 	/**
 	 * Constructor for cloning.
 	 */
-	private PlanPerson(Integer k, Id<Person> id, int offset, Int2IntMap[] plans, double[] scores, int maxImpact) {
+	private PlanPerson(Integer k, Id<Person> id, int offset, int[] offsets, int[] keys, int[] values, double[] scores, int maxImpact) {
 		this.k = k;
 		this.id = id;
 		this.offset = offset;
-		this.plans = plans;
+		this.offsets = offsets;
+		this.keys = keys;
+		this.values = values;
 		this.scores = scores;
 		this.maxImpact = maxImpact;
 	}
@@ -91,17 +123,6 @@ public final class PlanPerson {
 		return offset;
 	}
 
-	/**
-	 * Counts of selected maps.
-	 */
-	public Int2IntMap selected() {
-		return plans[k];
-	}
-
-	public Int2IntMap get(int idx) {
-		return plans[idx];
-	}
-
 	public void setK(int k) {
 		this.k = k;
 	}
@@ -112,15 +133,12 @@ public final class PlanPerson {
 
 	public void setScore(ScoreCalculator calc) {
 
-
-		for (int i = 0; i < plans.length; i++) {
+		for (int i = 0; i < scores.length; i++) {
 
 			double score = 0;
 
-			Int2IntMap p = plans[i];
-
-			for (Int2IntMap.Entry e : p.int2IntEntrySet()) {
-				score += calc.scoreEntry(e);
+			for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+				score += calc.scoreEntry(keys[j], values[j]);
 			}
 
 			scores[i] = score;
@@ -156,7 +174,7 @@ public final class PlanPerson {
 	}
 
 	PlanPerson copy() {
-		return new PlanPerson(k, id, offset, plans, scores, maxImpact);
+		return new PlanPerson(k, id, offset, offsets, keys, values, scores, maxImpact);
 	}
 
 	/**
@@ -14,9 +14,12 @@ import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.StreamingPopulationReader;
 import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.counts.Counts;
 import org.matsim.counts.MatsimCountsReader;
 import org.matsim.counts.Measurable;
@@ -28,6 +31,7 @@ import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 @CommandLine.Command(name = "run-count-opt", description = "Select plans to match counts data")
@@ -64,6 +68,9 @@ public class RunCountOptimization implements MATSimAppCommand {
 	@CommandLine.Option(names = "--k", description = "Number of plans to use from each agent", defaultValue = "5")
 	private int maxK;
 
+	@CommandLine.Option(names = "--threads", description = "Number of threads to process the input plans and for the pre optimization")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
 	@CommandLine.Mixin
 	private CsvOptions csv;
 
@@ -107,7 +114,7 @@ public class RunCountOptimization implements MATSimAppCommand {
 
 		Network network = NetworkUtils.readNetwork(networkPath.toString());
 
-		List<PlanPerson> persons = processPopulation(input, network, linkCounts);
+		List<PlanPerson> persons = processPopulation(input, network);
 
 		problem = new PlanAssignmentProblem(maxK, metric, persons, counts);
 
@@ -123,7 +130,7 @@ public class RunCountOptimization implements MATSimAppCommand {
 			case symmetric_percentage_error -> 300;
 		};
 
-		problem.iterate(5000, 0.5, beta, 0.01);
+		problem.iterate(5000, 0.5, beta, 0.01, threads);
 
 		PlanAssignmentProblem solution = solve(problem);
 
@@ -140,104 +147,208 @@ public class RunCountOptimization implements MATSimAppCommand {
 	}
 
 	/**
-	 * Create an array for each person.
+	 * Create an array for each person. Persons are read in a streaming fashion and processed in batches on a worker pool.
+	 * The order of the result is the same as in the input.
 	 */
-	private List<PlanPerson> processPopulation(Path input, Network network, Counts<Link> linkCounts) {
+	private List<PlanPerson> processPopulation(Path input, Network network) throws InterruptedException {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
-		List<PlanPerson> persons = new ArrayList<>();
+		int n = Id.getNumberOfIds(Link.class);
 
-		Set<Id<Link>> links = linkCounts.getMeasureLocations().keySet();
+		// Free speed travel time and count station of each link, by link index
+		double[] freeTravelTimes = new double[n];
+		int[] countIndices = new int[n];
+		Arrays.fill(freeTravelTimes, Double.NaN);
+		Arrays.fill(countIndices, -1);
 
-		SplittableRandom rnd = new SplittableRandom(0);
+		for (Link link : network.getLinks().values()) {
+			// Use ceil because traversal over links is always whole seconds during simulation
+			freeTravelTimes[link.getId().index()] = Math.ceil(link.getLength() / link.getFreespeed());
+		}
 
-		for (Person person : population.getPersons().values()) {
+		for (Object2IntMap.Entry<Id<Link>> e : linkMapping.object2IntEntrySet()) {
+			countIndices[e.getKey().index()] = e.getIntValue();
+		}
 
-			int scale = (int) (1 / sampleSize);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			PlanReader reader = new PlanReader(executor, freeTravelTimes, countIndices);
 
-			Int2IntMap[] plans = new Int2IntMap[maxK];
-			for (int i = 0; i < plans.length; i++) {
-				plans[i] = new Int2IntOpenHashMap();
-			}
+			StreamingPopulationReader populationReader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+			populationReader.addAlgorithm(reader);
+			populationReader.readFile(input.toString());
 
-			boolean keep = false;
+			return reader.finish();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			int offset = 0;
+	/**
+	 * Create the plan person for one person, or null if none of its plans is relevant.
+	 */
+	private PlanPerson processPerson(Person person, double[] freeTravelTimes, int[] countIndices) {
 
-			// commercial traffic is scaled here
-			if (!person.getId().toString().startsWith("person")) {
-				// if other trips have been scaled, these unscaled trips are scaled as well
-				if (allCar)
-					// scale with mean of CAR_FACTOR
-					scale *= RunOpenBerlinCalibration.CAR_FACTOR;
-			}
+		int scale = (int) (1 / sampleSize);
+
+		Int2IntMap[] plans = new Int2IntMap[maxK];
+		for (int i = 0; i < plans.length; i++) {
+			plans[i] = new Int2IntOpenHashMap();
+		}
 
-			// Index for plan
-			int k = offset;
-			for (Plan plan : person.getPlans()) {
+		boolean keep = false;
 
-				if (k >= maxK)
-					break;
+		int offset = 0;
 
-				for (PlanElement el : plan.getPlanElements()) {
-					if (el instanceof Leg leg) {
+		// commercial traffic is scaled here
+		if (!person.getId().toString().startsWith("person")) {
+			// if other trips have been scaled, these unscaled trips are scaled as well
+			if (allCar)
+				// scale with mean of CAR_FACTOR
+				scale *= RunOpenBerlinCalibration.CAR_FACTOR;
+		}
+
+		// Index for plan
+		int k = offset;
+		for (Plan plan : person.getPlans()) {
+
+			if (k >= maxK)
+				break;
 
-						Object networkMode = leg.getAttributes().getAttribute("networkMode");
-						if (!Objects.equals(networkMode, this.networkMode))
-							continue;
+			for (PlanElement el : plan.getPlanElements()) {
+				if (el instanceof Leg leg) {
 
-						if (leg.getRoute() instanceof NetworkRoute route) {
-							double travelTime = leg.getTravelTime().orElseThrow(() -> new IllegalStateException("No travel time for leg"));
-							double freeTravelTime = route.getLinkIds().stream()
-								.map(id -> network.getLinks().get(id))
-								// Use ceil because traversal over links is always whole seconds during simulation
-								.mapToDouble(l -> Math.ceil(l.getLength() / l.getFreespeed()))
-								.sum();
+					Object networkMode = leg.getAttributes().getAttribute("networkMode");
+					if (!Objects.equals(networkMode, this.networkMode))
+						continue;
 
-							boolean relevant = route.getLinkIds().stream().anyMatch(links::contains);
+					if (leg.getRoute() instanceof NetworkRoute route) {
+						double travelTime = leg.getTravelTime().orElseThrow(() -> new IllegalStateException("No travel time for leg"));
 
-							// The actual travel time per link is not known
-							// The overall deviation is applied to all links equally
-							double factor = travelTime / freeTravelTime;
+						List<Id<Link>> linkIds = route.getLinkIds();
 
-							double time = leg.getDepartureTime().seconds();
+						double freeTravelTime = 0;
+						boolean relevant = false;
+						for (Id<Link> linkId : linkIds) {
+							freeTravelTime += getFreeTravelTime(freeTravelTimes, linkId);
+							relevant |= countIndices[linkId.index()] >= 0;
+						}
+
+						// The actual travel time per link is not known
+						// The overall deviation is applied to all links equally
+						double factor = travelTime / freeTravelTime;
 
-							if (relevant) {
-								keep = true;
-								for (Id<Link> linkId : route.getLinkIds()) {
+						double time = leg.getDepartureTime().seconds();
 
-									Link link = network.getLinks().get(linkId);
+						if (relevant) {
+							keep = true;
+							for (Id<Link> linkId : linkIds) {
 
-									// Assume free speed travel time
-									time += Math.ceil(link.getLength() / link.getFreespeed()) * factor;
+								// Assume free speed travel time
+								time += freeTravelTimes[linkId.index()] * factor;
 
-									if (linkMapping.containsKey(linkId)) {
-										int idx = linkMapping.getInt(linkId);
-										int hour = (int) Math.floor(time / 3600);
-										if (hour >= H)
-											continue;
+								int idx = countIndices[linkId.index()];
+								if (idx >= 0) {
+									int hour = (int) Math.floor(time / 3600);
+									if (hour >= H)
+										continue;
 
-										plans[k].merge(idx * H + hour, scale, Integer::sum);
-									}
+									plans[k].merge(idx * H + hour, scale, Integer::sum);
 								}
 							}
 						}
 					}
 				}
-				k++;
 			}
+			k++;
+		}
+
+		if (!keep)
+			return null;
+
+		return new PlanPerson(person.getId(), offset, plans);
+	}
+
+	private static double getFreeTravelTime(double[] freeTravelTimes, Id<Link> linkId) {
+		int idx = linkId.index();
+		if (idx >= freeTravelTimes.length || Double.isNaN(freeTravelTimes[idx]))
+			throw new IllegalStateException("Link " + linkId + " is not part of the network");
+
+		return freeTravelTimes[idx];
+	}
+
+	/**
+	 * Collects persons from the population reader into batches and processes them on the executor.
+	 */
+	private final class PlanReader implements PersonAlgorithm {
+
+		private static final int BATCH_SIZE = 256;
+
+		private final ExecutorService executor;
+		private final double[] freeTravelTimes;
+		private final int[] countIndices;
+
+		/**
+		 * Limits the number of batches in memory that are not processed yet.
+		 */
+		private final Semaphore pending;
+		private final List<Future<List<PlanPerson>>> results = new ArrayList<>();
+
+		private List<Person> batch = new ArrayList<>(BATCH_SIZE);
+
+		private PlanReader(ExecutorService executor, double[] freeTravelTimes, int[] countIndices) {
+			this.executor = executor;
+			this.freeTravelTimes = freeTravelTimes;
+			this.countIndices = countIndices;
+			this.pending = new Semaphore(threads * 4);
+		}
+
+		@Override
+		public void run(Person person) {
+			batch.add(person);
+			if (batch.size() >= BATCH_SIZE)
+				submit();
+		}
+
+		private void submit() {
+
+			List<Person> b = batch;
+			batch = new ArrayList<>(BATCH_SIZE);
 
-			if (keep) {
-				for (int i = 0; i < plans.length; i++) {
-					if (plans[i].isEmpty())
-						plans[i] = PlanPerson.NOOP_PLAN;
+			pending.acquireUninterruptibly();
+			results.add(executor.submit(() -> {
+				try {
+					List<PlanPerson> result = new ArrayList<>();
+					for (Person person : b) {
+						PlanPerson p = processPerson(person, freeTravelTimes, countIndices);
+						if (p != null)
+							result.add(p);
+					}
+					return result;
+				} finally {
+					pending.release();
 				}
+			}));
+		}
+
+		private List<PlanPerson> finish() throws InterruptedException {
 
-				persons.add(new PlanPerson(person.getId(), offset, plans));
+			if (!batch.isEmpty())
+				submit();
+
+			List<PlanPerson> persons = new ArrayList<>();
+			for (Future<List<PlanPerson>> f : results) {
+				try {
+					persons.addAll(f.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException r)
+						throw r;
+
+					throw new IllegalStateException("Could not process persons", e.getCause());
+				}
 			}
-		}
 
-		return persons;
+			return persons;
+		}
 	}
 
 	private PlanAssignmentProblem solve(PlanAssignmentProblem problem) {
@@ -1,12 +1,12 @@
 package org.matsim.prepare.opt;
 
 
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import org.apache.commons.math3.util.FastMath;
 import org.optaplanner.core.api.score.buildin.simplebigdecimal.SimpleBigDecimalScore;
 import org.optaplanner.core.api.score.calculator.IncrementalScoreCalculator;
 
 import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Score calculator.
@@ -52,14 +52,26 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		metric = problem.metric;
 
 		for (PlanPerson person : problem) {
-			for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
-				observed[e.getIntKey()] += e.getIntValue();
+			int k = person.getK();
+			for (int i = person.offsets[k]; i < person.offsets[k + 1]; i++) {
+				observed[person.keys[i]] += person.values[i];
 			}
 		}
 
 		calcScoreInternal();
 	}
 
+	/**
+	 * Add changes to the observed counts, which are reset to zero afterward, and recalculate the error.
+	 */
+	void applyDelta(AtomicIntegerArray delta) {
+		for (int i = 0; i < observed.length; i++) {
+			observed[i] += delta.getAndSet(i, 0);
+		}
+
+		calcScoreInternal();
+	}
+
 	private void calcScoreInternal() {
 		error = 0;
 
@@ -92,12 +104,14 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		PlanPerson person = (PlanPerson) entity;
 
 		// remove this persons plan from the calculation
-		for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
+		int k = person.getK();
+		for (int i = person.offsets[k]; i < person.offsets[k + 1]; i++) {
 
-			int old = observed[e.getIntKey()];
-			int update = observed[e.getIntKey()] -= e.getIntValue();
+			int idx = person.keys[i];
+			int old = observed[idx];
+			int update = observed[idx] -= person.values[i];
 
-			error += diffChange(metric, counts[e.getIntKey()], old, update);
+			error += diffChange(metric, counts[idx], old, update);
 		}
 
 	}
@@ -109,12 +123,14 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		PlanPerson person = (PlanPerson) entity;
 
 		// add this persons contribution to the score
-		for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
+		int k = person.getK();
+		for (int i = person.offsets[k]; i < person.offsets[k + 1]; i++) {
 
-			int old = observed[e.getIntKey()];
-			int update = observed[e.getIntKey()] += e.getIntValue();
+			int idx = person.keys[i];
+			int old = observed[idx];
+			int update = observed[idx] += person.values[i];
 
-			error += diffChange(metric, counts[e.getIntKey()], old, update);
+			error += diffChange(metric, counts[idx], old, update);
 		}
 	}
 
@@ -132,13 +148,11 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		return SimpleBigDecimalScore.of(BigDecimal.valueOf(-error));
 	}
 
-	double scoreEntry(Int2IntMap.Entry e) {
-
-		int idx = e.getIntKey();
+	double scoreEntry(int idx, int value) {
 
 		// Calculate impact compared to a plan without the observations of this plan
 		// old can not get negative
 
-		return -diffChange(metric, counts[idx], Math.max(0, observed[idx] - e.getIntValue()), observed[idx]);
+		return -diffChange(metric, counts[idx], Math.max(0, observed[idx] - value), observed[idx]);
 	}
 }
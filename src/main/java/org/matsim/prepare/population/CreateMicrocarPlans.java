@@ -0,0 +1,343 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ProjectionUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.run.OpenBerlinScenario;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+@CommandLine.Command(
+	name = "create-microcar-plans",
+	description = "Create plan variants where a share of eligible car users switch to microcars."
+)
+public final class CreateMicrocarPlans implements MATSimAppCommand, PersonAlgorithm {
+
+	private static final Logger log = LogManager.getLogger(CreateMicrocarPlans.class);
+
+	private static final String MICROCAR = "microcar";
+
+	/**
+	 * Marks the end of the population for the writer threads.
+	 */
+	private static final Person END = PopulationUtils.getFactory().createPerson(Id.createPersonId("__end__"));
+
+	@CommandLine.Option(names = "--input", description = "Path to input population, usually without any microcar users.", required = true)
+	private Path input;
+
+	@CommandLine.Option(names = "--output", description = "Output path pattern, %d is replaced by the adoption share, e.g. plans-micro%02dpct.xml.gz", required = true)
+	private String output;
+
+	@CommandLine.Option(names = "--persons", description = "Path to output_persons.csv of a run with the input population", required = true)
+	private Path personsPath;
+
+	@CommandLine.Option(names = "--legs", description = "Path to output_legs.csv of a run with the input population", required = true)
+	private Path legsPath;
+
+	@CommandLine.Option(names = "--shares", description = "Adoption shares in percent of eligible agents", defaultValue = "0,20,40,60,80,100", split = ",")
+	private List<Integer> shares;
+
+	@CommandLine.Option(names = "--max-car-distance", description = "Maximum daily car distance in meters of eligible agents", defaultValue = "200000")
+	private double maxCarDistance;
+
+	@CommandLine.Option(names = "--household-sizes", description = "Household sizes of eligible agents, agents without household size are always eligible", defaultValue = "1,2", split = ",")
+	private Set<Integer> householdSizes;
+
+	@CommandLine.Option(names = "--exclude-vehicle-types", description = "Agents using any of these vehicle types are not eligible", defaultValue = "mercedes313,vwCaddy", split = ",")
+	private Set<String> excludedVehicleTypes;
+
+	/**
+	 * Rank of each eligible agent, agents with lower income come first.
+	 */
+	private final Object2IntMap<String> ranks = new Object2IntOpenHashMap<>();
+
+	/**
+	 * Number of agents using microcar for each share.
+	 */
+	private int[] cutoffs;
+
+	private List<BlockingQueue<Person>> queues;
+
+	/**
+	 * Writer tasks, one per share.
+	 */
+	private List<Future<?>> writers;
+
+	public static void main(String[] args) {
+		new CreateMicrocarPlans().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		shares = shares.stream().sorted().toList();
+
+		List<String> eligible = selectEligibleAgents();
+
+		for (int i = 0; i < eligible.size(); i++) {
+			ranks.put(eligible.get(i), i);
+		}
+
+		cutoffs = shares.stream().mapToInt(s -> (int) Math.floor(eligible.size() * s / 100.0)).toArray();
+
+		log.info("Found {} eligible agents, microcar users per share: {}", eligible.size(), Arrays.toString(cutoffs));
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+
+		// Each variant is written by its own thread, so that compression is done in parallel
+		ExecutorService executor = Executors.newFixedThreadPool(shares.size());
+		queues = new ArrayList<>();
+		writers = new ArrayList<>();
+		try {
+			for (int share : shares) {
+				BlockingQueue<Person> queue = new ArrayBlockingQueue<>(1024);
+				queues.add(queue);
+
+				String path = String.format(output, share);
+				writers.add(executor.submit(() -> writePopulation(path, scenario.getPopulation(), queue)));
+			}
+
+			StreamingPopulationReader reader = new StreamingPopulationReader(scenario);
+			reader.addAlgorithm(this);
+			reader.readFile(input.toString());
+
+			for (int i = 0; i < queues.size(); i++) {
+				put(i, END);
+			}
+
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} finally {
+			// Stops the remaining writers if one of them or the reader failed
+			executor.shutdownNow();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Select all eligible agents, sorted by income ascending. Agents without income are put at the end.
+	 */
+	private List<String> selectEligibleAgents() throws IOException {
+
+		CSVFormat format = CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true).build();
+
+		Object2DoubleMap<String> carDistance = new Object2DoubleOpenHashMap<>();
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(legsPath.toString()), format)) {
+			for (CSVRecord row : parser) {
+				if (row.get("mode").equals(TransportMode.car)) {
+					carDistance.mergeDouble(row.get("person"), parseDouble(row.get("distance")), Double::sum);
+				}
+			}
+		}
+
+		Object2DoubleMap<String> income = new Object2DoubleOpenHashMap<>();
+		List<String> eligible = new ArrayList<>();
+
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(personsPath.toString()), format)) {
+			boolean hasTypes = parser.getHeaderMap().containsKey("vehicleTypes");
+			if (!hasTypes && !excludedVehicleTypes.isEmpty())
+				throw new IllegalArgumentException(("Persons file %s has no vehicleTypes column, which is needed to exclude agents using %s. " +
+					"Use --exclude-vehicle-types= to include all agents.").formatted(personsPath, excludedVehicleTypes));
+
+			for (CSVRecord row : parser) {
+
+				String person = row.get("person");
+				if (!carDistance.containsKey(person) || !(carDistance.getDouble(person) < maxCarDistance))
+					continue;
+
+				double size = parseDouble(row.get(Attributes.HOUSEHOLD_SIZE));
+				if (!Double.isNaN(size) && !householdSizes.contains((int) size))
+					continue;
+
+				if (hasTypes && usesExcludedType(row.get("vehicleTypes")))
+					continue;
+
+				income.put(person, parseDouble(row.get("income")));
+				eligible.add(person);
+			}
+		}
+
+		// Sort is stable, so agents with equal income keep their order
+		eligible.sort(Comparator.comparingDouble((String p) -> Double.isNaN(income.getDouble(p)) ? Double.POSITIVE_INFINITY : income.getDouble(p)));
+
+		return eligible;
+	}
+
+	private boolean usesExcludedType(String vehicleTypes) {
+		for (String type : excludedVehicleTypes) {
+			if (vehicleTypes.contains("\"" + type + "\""))
+				return true;
+		}
+		return false;
+	}
+
+	private static double parseDouble(String value) {
+		if (value == null || value.isBlank())
+			return Double.NaN;
+
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	@Override
+	public void run(Person person) {
+
+		// All agents with a car also get a microcar, so that any of them could switch mode during the simulation
+		addMicrocarVehicle(person);
+
+		int rank = ranks.getOrDefault(person.getId().toString(), Integer.MAX_VALUE);
+
+		// Persons are not modified anymore after being passed to the writers
+		Person microcarPerson = null;
+		try {
+			for (int i = 0; i < shares.size(); i++) {
+				if (rank < cutoffs[i]) {
+					if (microcarPerson == null)
+						microcarPerson = createMicrocarPerson(person);
+
+					put(i, microcarPerson);
+				} else
+					put(i, person);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing population", e);
+		}
+	}
+
+	/**
+	 * Pass a person to a writer. Fails instead of blocking forever if any writer has stopped.
+	 */
+	private void put(int i, Person person) throws InterruptedException {
+		while (!queues.get(i).offer(person, 1, TimeUnit.SECONDS)) {
+			for (Future<?> writer : writers) {
+				if (!writer.isDone())
+					continue;
+
+				try {
+					writer.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Writing population failed", e.getCause());
+				}
+				throw new IllegalStateException("Writer stopped before the end of the population");
+			}
+		}
+	}
+
+	private static void addMicrocarVehicle(Person person) {
+
+		if (person.getAttributes().getAttribute("vehicles") == null)
+			return;
+
+		Map<String, Id<Vehicle>> vehicles = new LinkedHashMap<>(VehicleUtils.getVehicleIds(person));
+		Id<Vehicle> car = vehicles.get(TransportMode.car);
+		if (car == null)
+			return;
+
+		String prefix = car.toString().replaceFirst("_car$", "");
+		vehicles.put(MICROCAR, Id.createVehicleId(prefix + "_" + MICROCAR));
+		VehicleUtils.insertVehicleIdsIntoPersonAttributes(person, vehicles);
+	}
+
+	/**
+	 * Create a copy of the person, where all car trips are replaced by microcar trips.
+	 */
+	private static Person createMicrocarPerson(Person person) {
+
+		PopulationFactory f = PopulationUtils.getFactory();
+		Person copy = f.createPerson(person.getId());
+		AttributesUtils.copyAttributesFromTo(person, copy);
+
+		for (Plan plan : person.getPlans()) {
+			Plan planCopy = f.createPlan();
+			PopulationUtils.copyFromTo(plan, planCopy);
+			copy.addPlan(planCopy);
+
+			if (plan == person.getSelectedPlan())
+				copy.setSelectedPlan(planCopy);
+
+			for (PlanElement el : planCopy.getPlanElements()) {
+				if (el instanceof Activity act) {
+					if (act.getType().equals(TransportMode.car + " interaction"))
+						act.setType(MICROCAR + " interaction");
+				} else if (el instanceof Leg leg) {
+					if (leg.getMode().equals(TransportMode.car))
+						leg.setMode(MICROCAR);
+
+					if (TransportMode.car.equals(TripStructureUtils.getRoutingMode(leg)))
+						TripStructureUtils.setRoutingMode(leg, MICROCAR);
+
+					if (leg.getRoute() instanceof NetworkRoute route && route.getVehicleId() != null)
+						route.setVehicleId(Id.createVehicleId(route.getVehicleId().toString().replaceFirst("_car$", "_" + MICROCAR)));
+				}
+			}
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Write all persons from the queue. The population attributes, i.e. the coordinate system, are copied from the input,
+	 * which has been read up to the first person when the first element arrives.
+	 */
+	private static void writePopulation(String path, Population input, BlockingQueue<Person> queue) {
+
+		try {
+			Person person = queue.take();
+
+			Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+			AttributesUtils.copyAttributesFromTo(input, population);
+			if (ProjectionUtils.getCRS(population) == null)
+				ProjectionUtils.putCRS(population, OpenBerlinScenario.CRS);
+
+			PopulationWriter writer = new PopulationWriter(population);
+			writer.writeStartPlans(path);
+
+			while (person != END) {
+				writer.writePerson(person);
+				person = queue.take();
+			}
+
+			writer.writeEndPlans();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing population", e);
+		}
+
+		log.info("Written population to {}", path);
+	}
+}
@@ -0,0 +1,167 @@
+package org.matsim.run;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Local cache for downloads of HBEFA emission factor tables that are loaded from a remote location.
+ * Each table is stored under a name derived from its URL, together with a sidecar file holding the SHA-256 of the content
+ * and the HTTP validators of the download. On later runs the cached copy is verified against its hash and
+ * revalidated with a conditional request, so it is downloaded again only if the remote file has changed.
+ * <p>
+ * Files are stored as they are, encrypted tables stay encrypted and are decrypted by MATSim when read.
+ * Only the download is cached: the tables are still parsed by the {@code EmissionModule} of every run, because the
+ * emissions contrib offers no way to pass in parsed lookup tables. Local tables, like the average tables of
+ * {@link RunBerlinEmission}, are therefore left unchanged.
+ */
+public final class HbefaDownloadCache {
+
+	private static final Logger log = LogManager.getLogger(HbefaDownloadCache.class);
+
+	private HbefaDownloadCache() {
+	}
+
+	/**
+	 * Replace all remote emission factor files in the config group by cached local copies.
+	 *
+	 * @param config    config used to resolve relative file names
+	 * @param eConfig   emissions config group to modify
+	 * @param directory cache directory, shared between runs
+	 */
+	public static void apply(Config config, EmissionsConfigGroup eConfig, Path directory) {
+		eConfig.setDetailedColdEmissionFactorsFile(resolve(config, eConfig.getDetailedColdEmissionFactorsFile(), directory));
+		eConfig.setDetailedWarmEmissionFactorsFile(resolve(config, eConfig.getDetailedWarmEmissionFactorsFile(), directory));
+		eConfig.setAverageColdEmissionFactorsFile(resolve(config, eConfig.getAverageColdEmissionFactorsFile(), directory));
+		eConfig.setAverageWarmEmissionFactorsFile(resolve(config, eConfig.getAverageWarmEmissionFactorsFile(), directory));
+	}
+
+	/**
+	 * Return the location of the cached copy of a file, downloading it if necessary.
+	 *
+	 * @return the file name to use in the config
+	 */
+	static synchronized String resolve(Config config, String file, Path directory) {
+
+		if (file == null || file.isBlank())
+			return file;
+
+		URL url = ConfigGroup.getInputFileURL(config.getContext(), file);
+		if (url.getProtocol().equals("file"))
+			return file;
+
+		String path = url.getPath();
+		String name = Hashing.sha256().hashString(url.toString(), StandardCharsets.UTF_8).toString().substring(0, 16) +
+			"-" + path.substring(path.lastIndexOf('/') + 1);
+
+		Path cached = directory.resolve(name);
+		Path meta = directory.resolve(name + ".meta");
+
+		try {
+			Properties props = readValidMeta(cached, meta);
+
+			URLConnection conn = url.openConnection();
+			if (props != null && conn instanceof HttpURLConnection http) {
+				if (props.getProperty("etag") != null)
+					http.setRequestProperty("If-None-Match", props.getProperty("etag"));
+				if (props.getProperty("lastModified") != null)
+					http.setRequestProperty("If-Modified-Since", props.getProperty("lastModified"));
+			}
+
+			try {
+				if (props != null && conn instanceof HttpURLConnection http && http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					log.info("Using cached emission table {} for {}", cached, url);
+					return cached.toUri().toURL().toString();
+				}
+
+				download(conn, cached, meta);
+			} catch (IOException e) {
+				if (props == null)
+					throw e;
+
+				log.warn("Could not check {} for updates, using cached copy", url, e);
+			}
+
+			return cached.toUri().toURL().toString();
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not cache emission table " + url, e);
+		}
+	}
+
+	/**
+	 * Read the sidecar file, if the cached file exists and matches its hash.
+	 *
+	 * @return the stored properties, or null if the cached copy is missing or invalid
+	 */
+	private static Properties readValidMeta(Path cached, Path meta) throws IOException {
+
+		if (!Files.exists(cached) || !Files.exists(meta))
+			return null;
+
+		Properties props = new Properties();
+		try (Reader reader = Files.newBufferedReader(meta)) {
+			props.load(reader);
+		}
+
+		HashCode hash = com.google.common.io.Files.asByteSource(cached.toFile()).hash(Hashing.sha256());
+		if (!hash.toString().equals(props.getProperty("sha256"))) {
+			log.warn("Cached emission table {} does not match its hash and will be downloaded again", cached);
+			return null;
+		}
+
+		return props;
+	}
+
+	private static void download(URLConnection conn, Path cached, Path meta) throws IOException {
+
+		log.info("Downloading emission table {}", conn.getURL());
+
+		Files.createDirectories(cached.toAbsolutePath().getParent());
+
+		// Write to temporary files first, so that concurrent or interrupted runs never see partial files
+		Path tmp = Files.createTempFile(cached.toAbsolutePath().getParent(), cached.getFileName().toString(), ".tmp");
+		Path tmpMeta = Files.createTempFile(cached.toAbsolutePath().getParent(), meta.getFileName().toString(), ".tmp");
+
+		try {
+			HashCode hash;
+			try (HashingInputStream in = new HashingInputStream(Hashing.sha256(), conn.getInputStream())) {
+				Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+				hash = in.hash();
+			}
+
+			Properties props = new Properties();
+			props.setProperty("url", conn.getURL().toString());
+			props.setProperty("sha256", hash.toString());
+			if (conn.getHeaderField("ETag") != null)
+				props.setProperty("etag", conn.getHeaderField("ETag"));
+			if (conn.getHeaderField("Last-Modified") != null)
+				props.setProperty("lastModified", conn.getHeaderField("Last-Modified"));
+
+			try (Writer writer = Files.newBufferedWriter(tmpMeta)) {
+				props.store(writer, null);
+			}
+
+			Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpMeta, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+			Files.deleteIfExists(tmpMeta);
+		}
+	}
+}
@@ -2,6 +2,9 @@ package org.matsim.run;
 
 import com.google.inject.Key;
 import com.google.inject.name.Names;
+import org.matsim.analysis.EventHandlerTimingModule;
+import org.matsim.analysis.MemoryTrackingModule;
+import org.matsim.analysis.MetricsModule;
 import org.matsim.analysis.QsimTimingModule;
 import org.matsim.analysis.personMoney.PersonMoneyEventsAnalysisModule;
 import org.matsim.api.core.v01.Scenario;
@@ -34,6 +37,7 @@ import org.matsim.simwrapper.SimWrapperModule;
 import picocli.CommandLine;
 import playground.vsp.scoring.IncomeDependentUtilityOfMoneyPersonScoringParameters;
 
+import java.nio.file.Path;
 import java.util.List;
 
 @CommandLine.Command(header = ":: Open Berlin Scenario ::", version = OpenBerlinScenario.VERSION, mixinStandardHelpOptions = true, showDefaultValues = true)
@@ -57,6 +61,21 @@ public class OpenBerlinScenario extends MATSimApplication {
 		defaultValue = DefaultPlanStrategiesModule.DefaultSelector.ChangeExpBeta)
 	private String planSelector;
 
+	@CommandLine.Option(names = "--hbefa-cache", description = "Directory to cache downloads of the remote HBEFA tables. Tables are downloaded on every run if not set. Parsing is not cached.")
+	private Path hbefaCache;
+
+	@CommandLine.Option(names = "--event-handler-timing", description = "Measure the time spent in each event handler and write it to handler_timings.csv.")
+	private boolean eventHandlerTiming;
+
+	@CommandLine.Option(names = "--memory-tracking", description = "Record heap usage per iteration and warn (WARN) or abort (FAIL) if it is projected to exceed the maximum heap size.")
+	private MemoryTracking memoryTracking;
+
+	@CommandLine.Option(names = "--metrics-port", description = "Serve live metrics in Prometheus format on this port of localhost.", defaultValue = "0")
+	private int metricsPort;
+
+	@CommandLine.Option(names = "--metrics-file", description = "Periodically write live metrics in Prometheus format to this file.")
+	private Path metricsFile;
+
 	public OpenBerlinScenario() {
 		super(String.format("input/v%s/berlin-v%s.config.xml", VERSION, VERSION));
 	}
@@ -140,6 +159,9 @@ public class OpenBerlinScenario extends MATSimApplication {
 		eConfig.setDetailedVsAverageLookupBehavior(EmissionsConfigGroup.DetailedVsAverageLookupBehavior.tryDetailedThenTechnologyAverageThenAverageTable);
 		eConfig.setEmissionsComputationMethod(EmissionsConfigGroup.EmissionsComputationMethod.StopAndGoFraction);
 
+		if (hbefaCache != null)
+			HbefaDownloadCache.apply(config, eConfig, hbefaCache);
+
 		return config;
 	}
 
@@ -160,6 +182,15 @@ public class OpenBerlinScenario extends MATSimApplication {
 
 		controler.addOverridingModule(new QsimTimingModule());
 
+		if (eventHandlerTiming)
+			controler.addOverridingModule(new EventHandlerTimingModule());
+
+		if (memoryTracking != null)
+			controler.addOverridingModule(new MemoryTrackingModule(memoryTracking == MemoryTracking.FAIL));
+
+		if (metricsPort > 0 || metricsFile != null)
+			controler.addOverridingModule(new MetricsModule(metricsPort, metricsFile));
+
 		// AdvancedScoring is specific to matsim-berlin!
 		if (ConfigUtils.hasModule(controler.getConfig(), AdvancedScoringConfigGroup.class)) {
 			controler.addOverridingModule(new AdvancedScoringModule());
@@ -177,6 +208,14 @@ public class OpenBerlinScenario extends MATSimApplication {
 		controler.addOverridingModule(new PersonMoneyEventsAnalysisModule());
 	}
 
+	/**
+	 * Behaviour of the memory tracking if the heap is projected to run out.
+	 */
+	public enum MemoryTracking {
+		WARN,
+		FAIL
+	}
+
 	/**
 	 * Add travel time bindings for ride and freight modes, which are not actually network modes.
 	 */
@@ -2,7 +2,10 @@ package org.matsim.run;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.EmissionAggregator;
+import org.matsim.analysis.EmissionAggregator.VehicleCategory;
 import org.matsim.analysis.EmissionDataProcessor;
+import org.matsim.analysis.EmissionSummaryHandler;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.contrib.emissions.EmissionModule;
@@ -46,6 +49,16 @@ public final class RunBerlinEmission {
 	private static final String eventsFile = basePath + "/output_events.xml.gz";
 	private static final String emissionEventOutputFileName = "output_event_emission.xml.gz";
 
+	/**
+	 * Format of the emission summary. CSV needs less memory and is faster to write for large networks.
+	 */
+	public static final EmissionDataProcessor.SummaryFormat SUMMARY_FORMAT = EmissionDataProcessor.SummaryFormat.XLSX;
+
+	/**
+	 * Whether to write all emission events to {@link #emissionEventOutputFileName}. The summary is computed without this file.
+	 */
+	public static final boolean WRITE_EMISSION_EVENTS = false;
+
 	/**
 	 * Private constructor to prevent instantiation.
 	 */
@@ -74,8 +87,8 @@ public final class RunBerlinEmission {
 		EventsManager eventsManager = EventsUtils.createEventsManager();
 		initializeEmissionModule(config, scenario, eventsManager);
 
-		processEvents(config, eventsManager, eventsFile);
-		writeOutputs(config, scenario, rootPath);
+		EmissionAggregator data = processEvents(config, scenario, eventsManager, eventsFile);
+		writeOutputs(config, scenario, rootPath, data);
 	}
 
 
@@ -129,40 +142,75 @@ public final class RunBerlinEmission {
 		config.vehicles().setVehiclesFile("../../../" + rootPath.getParentFile() + "/output_allVehicles.xml.gz");
 		config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
 
+		EmissionsConfigGroup emissionsConfig = configureEmissions(config, warmEmissionFile, coldEmissionFile);
+		emissionsConfig.setNonScenarioVehicles(EmissionsConfigGroup.NonScenarioVehicles.abort);
+	}
+
+	/**
+	 * Configures the emission module to use the average HBEFA tables.
+	 * The tables are parsed again by each {@link EmissionModule}, they are not shared between runs.
+	 *
+	 * @param config           The MATSim configuration object.
+	 * @param warmEmissionFile Path to the warm emission factors file, relative to the config context.
+	 * @param coldEmissionFile Path to the cold emission factors file, relative to the config context.
+	 * @return The emissions config group.
+	 */
+	public static EmissionsConfigGroup configureEmissions(Config config, String warmEmissionFile, String coldEmissionFile) {
 		EmissionsConfigGroup emissionsConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
 		emissionsConfig.setAverageColdEmissionFactorsFile(coldEmissionFile);
 		emissionsConfig.setAverageWarmEmissionFactorsFile(warmEmissionFile);
-		emissionsConfig.setNonScenarioVehicles(EmissionsConfigGroup.NonScenarioVehicles.abort);
 		emissionsConfig.setDetailedVsAverageLookupBehavior(EmissionsConfigGroup.DetailedVsAverageLookupBehavior.directlyTryAverageTable);
 		emissionsConfig.setEmissionsComputationMethod(EmissionsConfigGroup.EmissionsComputationMethod.StopAndGoFraction);
+		return emissionsConfig;
 	}
 
 
 
 	/**
-	 * Processes the emission events and writes the output.
+	 * Processes the events, computes emissions and aggregates them in the same pass.
+	 * The emission events are only written if {@link #WRITE_EMISSION_EVENTS} is set.
+	 *
+	 * @return The aggregated emissions.
 	 */
-	public static void processEvents(Config config, EventsManager eventsManager, String eventsFile) {
-		final EventWriterXML eventWriterXML = new EventWriterXML(config.controller().getOutputDirectory() + '/' + emissionEventOutputFileName);
-		eventsManager.addHandler(eventWriterXML);
+	public static EmissionAggregator processEvents(Config config, Scenario scenario, EventsManager eventsManager, String eventsFile) {
+		EmissionSummaryHandler summary = new EmissionSummaryHandler(scenario.getVehicles(), scenario.getTransitVehicles());
+		eventsManager.addHandler(summary);
+
+		EventWriterXML eventWriterXML = null;
+		if (WRITE_EMISSION_EVENTS) {
+			eventWriterXML = new EventWriterXML(config.controller().getOutputDirectory() + '/' + emissionEventOutputFileName);
+			eventsManager.addHandler(eventWriterXML);
+		}
+
 		EventsUtils.readEvents(eventsManager, eventsFile);
-		eventWriterXML.closeFile();
+
+		if (eventWriterXML != null)
+			eventWriterXML.closeFile();
+
+		return summary.getData();
 	}
 
 	/**
-	 * Writes output files such as vehicle, network, and configuration data.
+	 * Writes output files such as vehicle, network, and configuration data, as well as the emission summary.
 	 */
-	public static void writeOutputs(Config config, Scenario scenario, File rootPath) {
+	public static void writeOutputs(Config config, Scenario scenario, File rootPath, EmissionAggregator data) {
 		new MatsimVehicleWriter(scenario.getVehicles()).writeFile(config.controller().getOutputDirectory() + "/output_vehicles.xml.gz");
+		new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(config.controller().getOutputDirectory() + "/output_transitVehicles.xml.gz");
 		NetworkUtils.writeNetwork(scenario.getNetwork(), config.controller().getOutputDirectory() + "/output_network.xml.gz");
 		ConfigUtils.writeConfig(config, config.controller().getOutputDirectory() + "/output_config.xml");
 		ConfigUtils.writeMinimalConfig(config, config.controller().getOutputDirectory() + "/output_config_reduced.xml");
 
-		generateExcelSummary(config, rootPath);
+		String output = config.controller().getOutputDirectory() + "/emissions_summary_" + rootPath.getParentFile().getName();
+		try {
+			EmissionDataProcessor.saveSummary(data, output, SUMMARY_FORMAT);
+			log.info("Emission summary created: " + output);
+		} catch (IOException e) {
+			log.error("Failed to write emission summary", e);
+		}
 	}
 
 	/**
-	 * Generates an Excel summary of emission data.
+	 * Generates a summary of emission data in the configured {@link #SUMMARY_FORMAT} from a previously written emission events file.
 	 *
 	 * @param config   The MATSim configuration object.
 	 * @param rootPath The root path where the summary will be saved.
@@ -170,16 +218,22 @@ public final class RunBerlinEmission {
 	public static void generateExcelSummary(Config config, File rootPath) {
 		try {
 			log.info("Start parsing the vehicle file");
-			Map<String, String> vehicleMap = EmissionDataProcessor.parseVehicleFile(rootPath + "/output_vehicles.xml.gz");
+			// Transit vehicles are needed to assign emissions of pt vehicles to their category
+			List<String> vehicleFiles = new ArrayList<>(List.of(rootPath + "/output_vehicles.xml.gz"));
+			if (new File(rootPath, "output_transitVehicles.xml.gz").exists())
+				vehicleFiles.add(rootPath + "/output_transitVehicles.xml.gz");
+
+			Map<String, VehicleCategory> vehicleMap = EmissionDataProcessor.parseVehicleFile(vehicleFiles.toArray(String[]::new));
 
 			log.info("Start parsing the event file");
-			Map<String, Map<Double, Map<String, EmissionDataProcessor.EmissionData>>> data =
-				EmissionDataProcessor.parseEventFile(rootPath.getPath() + '/' + emissionEventOutputFileName, vehicleMap);
+			EmissionAggregator data = EmissionDataProcessor.parseEventFile(rootPath.getPath() + '/' + emissionEventOutputFileName, vehicleMap);
 
-			log.info("Start saving the data to Excel");
-			EmissionDataProcessor.saveToExcel(data, config.controller().getOutputDirectory() + "/emissions_summary_" + rootPath.getParentFile().getName() + ".xlsx");
+			String output = config.controller().getOutputDirectory() + "/emissions_summary_" + rootPath.getParentFile().getName();
 
-			log.info("Excel file created: " + config.controller().getOutputDirectory() + "/emissions_summary_" + rootPath.getParentFile().getName() + ".xlsx");
+			log.info("Start saving the data as {}", SUMMARY_FORMAT);
+			EmissionDataProcessor.saveSummary(data, output, SUMMARY_FORMAT);
+
+			log.info("Emission summary created: " + output);
 
 		} catch (IOException | SAXException | javax.xml.parsers.ParserConfigurationException | NumberFormatException e) {
 			log.error("Failed to generate Excel summary", e);
@@ -223,13 +277,18 @@ public final class RunBerlinEmission {
 	}
 
 	/**
-	 * Sets up vehicle attributes for emissions calculations.
+	 * Sets up vehicle attributes for emissions calculations. Types of the scenario and the transit vehicles are considered,
+	 * because during a simulation the transit vehicles are not part of the scenario vehicles.
 	 *
 	 * @param scenario The MATSim scenario object.
 	 */
 	public static void setupVehicleAttributes(Scenario scenario) {
 		Set<String> nonHbefaVehicleTypes = Set.of("Tram_veh_type", "Ferry_veh_type", "Bus_veh_type", "RE_RB_veh_type", "S-Bahn_veh_type", "U-Bahn_veh_type");
-		for (VehicleType vehicleType : scenario.getVehicles().getVehicleTypes().values()) {
+
+		List<VehicleType> types = new ArrayList<>(scenario.getVehicles().getVehicleTypes().values());
+		types.addAll(scenario.getTransitVehicles().getVehicleTypes().values());
+
+		for (VehicleType vehicleType : types) {
 			if (nonHbefaVehicleTypes.contains(vehicleType.getId().toString())) {
 				EngineInformation engineInfo = vehicleType.getEngineInformation();
 				VehicleUtils.setHbefaVehicleCategory(engineInfo, HbefaVehicleCategory.NON_HBEFA_VEHICLE.toString());
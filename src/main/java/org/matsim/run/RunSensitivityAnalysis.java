@@ -4,6 +4,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.google.inject.Key;
 import com.google.inject.name.Names;
+import org.matsim.analysis.EmissionAggregator;
+import org.matsim.analysis.OnlineEmissionModule;
 import org.matsim.analysis.QsimTimingModule;
 import org.matsim.analysis.personMoney.PersonMoneyEventsAnalysisModule;
 import org.matsim.api.core.v01.Id;
@@ -11,6 +13,7 @@ import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.application.MATSimApplication;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
@@ -41,9 +44,12 @@ import picocli.CommandLine;
 import playground.vsp.scoring.IncomeDependentUtilityOfMoneyPersonScoringParameters;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 
 @CommandLine.Command(header = ":: Open Berlin Scenario ::", version = OpenBerlinScenario.VERSION, mixinStandardHelpOptions = true)
@@ -55,6 +61,18 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 	public static final String CRS = "EPSG:25832";
 	public static final String CONFIG_FILE = "input/v6.4/berlin-v6.4.config.xml";
 	public static final double SAMPLE_SIZE = 0.1;
+	public static final String OUTPUT_ROOT = "./output";
+
+	// Sweep execution: number of cells run at the same time, limited further by the available heap
+	// Values above 1 share MATSim's global random and logging state between runs, results are then not reproducible
+	public static final int PARALLEL_RUNS = 1;
+	public static final double HEAP_PER_RUN_GB = 24;
+
+	// Plans are written every n iterations, an interrupted cell is resumed from the last of these
+	public static final int CHECKPOINT_INTERVAL = 10;
+
+	// Start new cells from the output plans of the closest finished cell with the same plan file
+	public static final boolean WARM_START = false;
 
 	// Sensitivity Analysis configuration
 	public static final List<Double> MICRO_SPEEDS = List.of(50.0);
@@ -73,6 +91,12 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 	public static final String HBEFA_FILE_COLD_AVERAGE = "csv-data/cold_avr_2020_WTT_zero.csv";
 	public static final String HBEFA_FILE_WARM_AVERAGE = "csv-data/EFA_HOT_Vehcat_hot_avr_WTT_all_road_type.csv";
 
+	// compute emissions during the last iteration instead of re-reading the events afterward
+	public static final boolean ONLINE_EMISSIONS = false;
+	private static final String EMISSION_CONFIG_DIR = "emission-average/";
+
+	private static final Id<VehicleType> MICROCAR_TYPE = Id.create("microcar", VehicleType.class);
+
 	private static final Logger log = LogManager.getLogger(RunSensitivityAnalysis.class);
 
 	public RunSensitivityAnalysis() {
@@ -80,61 +104,114 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 	}
 
 	public static void main(String[] args) {
+
+		List<SweepCell> cells = new ArrayList<>();
 		for (String planFile : PLAN_FILES) {
 			for (double microSpeed : MICRO_SPEEDS) {
 				for (double microPCE : MICRO_PCES) {
+					cells.add(new SweepCell(planFile, microSpeed, microPCE, ITER_NUM));
+				}
+			}
+		}
 
-					// Generate folderName dynamically
-					String folderName = String.format("micro%spct-sp%.0f-pce%.1f-iter%d", extractPercentage(planFile), microSpeed, microPCE, ITER_NUM);
+		// network, transit, facilities and vehicle types are the same for all cells
+		ScenarioSnapshot snapshot = ScenarioSnapshot.load(ConfigUtils.loadConfig(CONFIG_FILE), RunSensitivityAnalysis::prepareSharedScenario);
 
-					log.info("Running simulation for folderName = {}", folderName);
+		// finished cells are skipped, interrupted cells are resumed
+		SweepState state = SweepState.load(Path.of(OUTPUT_ROOT, "sweep_state.csv"), Path.of(CONFIG_FILE));
 
-					// matsim simulation
-					try {
-						RunSensitivityAnalysis instance = new RunSensitivityAnalysis();
-						Config config = instance.prepareConfig(ConfigUtils.loadConfig(CONFIG_FILE), folderName, planFile);
-						Scenario scenario = ScenarioUtils.loadScenario(config);
-						instance.prepareScenario(scenario, microSpeed, microPCE);
-						Controler controler = new Controler(scenario);
-						instance.prepareControler(controler);
-						controler.run();
-					} catch (NumberFormatException e) {
-						log.error("An error occurred", e);
-					}
+		SensitivitySweepExecutor executor = new SensitivitySweepExecutor(PARALLEL_RUNS, HEAP_PER_RUN_GB);
+		executor.run(cells, Path.of(OUTPUT_ROOT, "sweep_manifest.csv"), (cell, threads) -> runCell(snapshot, state, cells, cell, threads));
+	}
 
-					log.info("Running emission analysis for folderName = {}", folderName);
+	/**
+	 * Output directory of a sweep cell.
+	 */
+	public static String getOutputDirectory(SweepCell cell) {
+		return OUTPUT_ROOT + "/" + cell.folderName();
+	}
 
-					// emission analysis
-					try {
-						Config emissionConfig = ConfigUtils.loadConfig(EMISSION_CONFIG_FILE);
-						File rootPath = RunBerlinEmission.createOutputFolder("./output/" + folderName);
-						RunBerlinEmission.prepareConfig(emissionConfig, rootPath, HBEFA_FILE_WARM_AVERAGE, HBEFA_FILE_COLD_AVERAGE);
+	/**
+	 * Run the simulation and the emission analysis for one cell of the parameter grid.
+	 *
+	 * @param snapshot shared parts of the scenario
+	 * @param state    state of the sweep, used to skip finished cells
+	 * @param cells    all cells of the sweep, used to find warm start candidates
+	 * @param cell     the cell to run
+	 * @param threads  number of threads available to this run
+	 */
+	static void runCell(ScenarioSnapshot snapshot, SweepState state, List<SweepCell> cells, SweepCell cell, int threads) {
 
-						Scenario emissionScenario = ScenarioUtils.loadScenario(emissionConfig);
-						RunBerlinEmission.prepareScenario(emissionScenario);
+		String folderName = cell.folderName();
 
+		if (state.isFinished(cell)) {
+			log.info("Skipping finished cell folderName = {}", folderName);
+			return;
+		}
 
-						EventsManager eventsManager = EventsUtils.createEventsManager();
-						RunBerlinEmission.initializeEmissionModule(emissionConfig, emissionScenario, eventsManager);
+		// Only cells that have been started with the same parameters and config are resumed, checked before the state is updated
+		Optional<SweepState.Checkpoint> checkpoint = state.findCheckpoint(cell, Path.of(getOutputDirectory(cell)));
+
+		state.update(cell, SweepState.Status.RUNNING);
+
+		log.info("Running simulation for folderName = {}", folderName);
+
+		// matsim simulation
+		RunSensitivityAnalysis instance = new RunSensitivityAnalysis();
+		Config config = instance.prepareConfig(ConfigUtils.loadConfig(CONFIG_FILE), folderName, cell.planFile());
+
+		config.global().setNumberOfThreads(threads);
+		config.qsim().setNumberOfThreads(threads);
+
+		// The travel times do not need to be restored, because the first iteration of a run does not replan
+		// and the routes are already contained in the plans
+		// Without a checkpoint, an existing output directory is deleted by the controler
+		if (checkpoint.isPresent()) {
+			log.info("Resuming folderName = {} from iteration {}", folderName, checkpoint.get().iteration());
+			config.controller().setFirstIteration(checkpoint.get().iteration());
+			config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.overwriteExistingFiles);
+			config.plans().setInputFile(checkpoint.get().plans().toAbsolutePath().toString());
+		} else if (WARM_START) {
+			// As for checkpoints, the plans contain the routes and travel times are rebuilt by the first mobsim
+			Optional<SweepCell> neighbour = state.findNearestFinished(cell, cells);
+			Path plans = neighbour.map(n -> Path.of(getOutputDirectory(n), "output_plans.xml.gz")).orElse(null);
+			if (plans != null && Files.exists(plans)) {
+				log.info("Warm starting folderName = {} from {}", folderName, neighbour.get().folderName());
+				config.plans().setInputFile(plans.toAbsolutePath().toString());
+			}
+		}
 
-						RunBerlinEmission.processEvents(emissionConfig, eventsManager, "./output/" + folderName + "/output_events.xml.gz");
-						RunBerlinEmission.writeOutputs(emissionConfig, emissionScenario, rootPath);
+		Scenario scenario = snapshot.createScenario(config, Set.of(MICROCAR_TYPE));
+		instance.prepareScenario(scenario, cell.microSpeed(), cell.microPCE());
+		Controler controler = new Controler(scenario);
+		instance.prepareControler(controler);
+		controler.run();
 
-						log.info("Emission analysis completed for folderName = {}", folderName);
-					} catch (NumberFormatException e) {
-						log.error("An error occurred", e);
-					}
+		if (ONLINE_EMISSIONS) {
+			log.info("Emissions were computed during the simulation for folderName = {}", folderName);
+			state.update(cell, SweepState.Status.FINISHED);
+			return;
+		}
 
+		log.info("Running emission analysis for folderName = {}", folderName);
 
-				}
-			}
-		}
-	}
+		// emission analysis
+		Config emissionConfig = ConfigUtils.loadConfig(EMISSION_CONFIG_FILE);
+		File rootPath = RunBerlinEmission.createOutputFolder(getOutputDirectory(cell));
+		RunBerlinEmission.prepareConfig(emissionConfig, rootPath, HBEFA_FILE_WARM_AVERAGE, HBEFA_FILE_COLD_AVERAGE);
+
+		Scenario emissionScenario = ScenarioUtils.loadScenario(emissionConfig);
+		RunBerlinEmission.prepareScenario(emissionScenario);
+
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		RunBerlinEmission.initializeEmissionModule(emissionConfig, emissionScenario, eventsManager);
+
+		EmissionAggregator data = RunBerlinEmission.processEvents(emissionConfig, emissionScenario, eventsManager, getOutputDirectory(cell) + "/output_events.xml.gz");
+		RunBerlinEmission.writeOutputs(emissionConfig, emissionScenario, rootPath, data);
 
+		log.info("Emission analysis completed for folderName = {}", folderName);
 
-	private static String extractPercentage(String planFile) {
-		String percentage = planFile.replaceAll(".*-micro(\\d+)pct.*", "$1");
-		return String.format("%03d", Integer.parseInt(percentage));
+		state.update(cell, SweepState.Status.FINISHED);
 	}
 
 	/**
@@ -150,11 +227,12 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 
 		SimWrapperConfigGroup sw = ConfigUtils.addOrGetModule(config, SimWrapperConfigGroup.class);
 
-		config.controller().setOutputDirectory("./output/" + folderName);
+		config.controller().setOutputDirectory(OUTPUT_ROOT + "/" + folderName);
 		log.info(config.controller().getOutputDirectory());
 		config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
 
 		config.controller().setLastIteration(ITER_NUM);
+		config.controller().setWritePlansInterval(CHECKPOINT_INTERVAL);
 		config.plans().setInputFile(planFile);
 
 		{
@@ -212,6 +290,14 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 		// Bicycle config must be present
 		ConfigUtils.addOrGetModule(config, BicycleConfigGroup.class);
 
+		if (ONLINE_EMISSIONS) {
+			// Paths are relative to the context of the main config
+			EmissionsConfigGroup emissionsConfig = RunBerlinEmission.configureEmissions(config,
+				EMISSION_CONFIG_DIR + HBEFA_FILE_WARM_AVERAGE, EMISSION_CONFIG_DIR + HBEFA_FILE_COLD_AVERAGE);
+			// Transit vehicles are included by the online module, so unknown vehicles are handled like in the analysis after the run
+			emissionsConfig.setNonScenarioVehicles(EmissionsConfigGroup.NonScenarioVehicles.abort);
+		}
+
 		// scoring for microcar
 		{
 			ScoringConfigGroup.ModeParams params = new ScoringConfigGroup.ModeParams("microcar");
@@ -230,13 +316,12 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 	}
 
 	/**
-	 * Configures the MATSim scenario by adding microcar settings and modifying vehicle speeds.
+	 * Configures the parts of the scenario that are shared by all cells: adds the microcar mode to the network and adjusts the PCE of transit vehicles.
+	 * This must be applied only once per loaded scenario.
 	 *
 	 * @param scenario The MATSim scenario to modify.
-	 * @param microSpeed The speed of microcars (in km/h).
-	 * @param microPCE The Passenger Car Equivalent (PCE) of microcars.
 	 */
-	protected final void prepareScenario(Scenario scenario, double microSpeed, double microPCE) {
+	static void prepareSharedScenario(Scenario scenario) {
 
 		// Add microcar mode to all the links where car mode is allowed
 		for (Link link : scenario.getNetwork().getLinks().values()) {
@@ -247,15 +332,6 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 			link.setAllowedModes(allowedModes);
 		}
 
-		// Add PCE and Max. speed of microcar to the vehicle file based on values defined in this Java file
-		for (VehicleType vehicleType : scenario.getVehicles().getVehicleTypes().values()) {
-			Id<VehicleType> vehicleTypeId = vehicleType.getId();
-			if (Objects.equals(vehicleTypeId.toString(), "microcar")) {
-				vehicleType.setMaximumVelocity(microSpeed / 3.6);
-				vehicleType.setPcuEquivalents(microPCE);
-			}
-		}
-
 		// Adjust the PCE of transit vehicles (public transportation) along with the sample size
 		// Please refer to https://github.com/matsim-org/matsim-code-examples/issues/395 for the reason
 		for (VehicleType vehicleType : scenario.getTransitVehicles().getVehicleTypes().values()) {
@@ -263,6 +339,26 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 			vehicleType.setPcuEquivalents(originalVehiclePce * SAMPLE_SIZE);
 		}
 
+		if (ONLINE_EMISSIONS) {
+			RunBerlinEmission.prepareScenario(scenario);
+		}
+	}
+
+	/**
+	 * Configures the microcar vehicle type of a single run. The microcar type must be private to the scenario, see {@link ScenarioSnapshot#createScenario(Config, Set)}.
+	 *
+	 * @param scenario The MATSim scenario to modify.
+	 * @param microSpeed The speed of microcars (in km/h).
+	 * @param microPCE The Passenger Car Equivalent (PCE) of microcars.
+	 */
+	protected final void prepareScenario(Scenario scenario, double microSpeed, double microPCE) {
+
+		// Add PCE and Max. speed of microcar to the vehicle file based on values defined in this Java file
+		VehicleType vehicleType = scenario.getVehicles().getVehicleTypes().get(MICROCAR_TYPE);
+		if (vehicleType != null) {
+			vehicleType.setMaximumVelocity(microSpeed / 3.6);
+			vehicleType.setPcuEquivalents(microPCE);
+		}
 	}
 
 	@Override
@@ -274,6 +370,17 @@ public class RunSensitivityAnalysis extends MATSimApplication {
 
 		controler.addOverridingModule(new QsimTimingModule());
 
+		controler.addOverridingModule(new AbstractModule() {
+			@Override
+			public void install() {
+				addControlerListenerBinding().to(SweepState.CheckpointListener.class);
+			}
+		});
+
+		if (ONLINE_EMISSIONS) {
+			controler.addOverridingModule(new OnlineEmissionModule(RunBerlinEmission.SUMMARY_FORMAT));
+		}
+
 		// AdvancedScoring is specific to matsim-berlin!
 		if (ConfigUtils.hasModule(controler.getConfig(), AdvancedScoringConfigGroup.class)) {
 			controler.addOverridingModule(new AdvancedScoringModule());
@@ -0,0 +1,172 @@
+package org.matsim.run;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.Config;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.utils.objectattributes.AttributeConverter;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Holds the parts of a scenario that are identical for all runs of a sweep, i.e. network, transit schedule, transit vehicles, facilities and vehicle types.
+ * These are parsed only once and the same instances are passed to all runs. Each run gets its own scenario view with its own population
+ * and private copies of the vehicle types it wants to modify.
+ * <p>
+ * MATSim does not enforce that the shared objects are read-only. Modifications that apply to all runs
+ * need to be done with the preparation function passed to {@link #load(Config, Consumer)}. Apart from that, the following writes are known:
+ * <ul>
+ *     <li>The spatial indices of the network are built lazily. They are built once while loading, so that runs only read them.</li>
+ *     <li>{@code PrepareForSim} assigns links to facilities without a link. This happens in the first run and is the same for later runs,
+ *     but is not safe if runs are prepared concurrently. A warning is logged if such facilities exist.</li>
+ * </ul>
+ * Runs of one snapshot should therefore be executed one after another, unless the input facilities all have links assigned.
+ */
+public final class ScenarioSnapshot {
+
+	private static final Logger log = LogManager.getLogger(ScenarioSnapshot.class);
+
+	private final Scenario base;
+
+	/**
+	 * Additional converters used when reading the population of a run.
+	 */
+	private final Map<Class<?>, AttributeConverter<?>> attributeConverters;
+
+	private ScenarioSnapshot(Scenario base, Map<Class<?>, AttributeConverter<?>> attributeConverters) {
+		this.base = base;
+		this.attributeConverters = attributeConverters;
+	}
+
+	/**
+	 * Load the shared parts of the scenario. The population given in the config is ignored.
+	 *
+	 * @param config  config containing the paths of the shared input files
+	 * @param prepare modification that is applied once to the shared scenario, e.g. allowed modes of links
+	 */
+	public static ScenarioSnapshot load(Config config, Consumer<Scenario> prepare) {
+		return load(config, Map.of(), prepare);
+	}
+
+	/**
+	 * Load the shared parts of the scenario. The population given in the config is ignored.
+	 *
+	 * @param config              config containing the paths of the shared input files
+	 * @param attributeConverters additional converters for person attributes, which are used when the population of a run is read
+	 * @param prepare             modification that is applied once to the shared scenario, e.g. allowed modes of links
+	 */
+	public static ScenarioSnapshot load(Config config, Map<Class<?>, AttributeConverter<?>> attributeConverters, Consumer<Scenario> prepare) {
+
+		String plans = config.plans().getInputFile();
+		config.plans().setInputFile(null);
+
+		log.info("Loading shared scenario snapshot");
+
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		prepare.accept(scenario);
+
+		// Build the lazy spatial indices now, so that concurrent runs do not build them at the same time
+		Network network = scenario.getNetwork();
+		if (!network.getNodes().isEmpty()) {
+			Coord coord = network.getNodes().values().iterator().next().getCoord();
+			NetworkUtils.getNearestNode(network, coord);
+			NetworkUtils.getNearestLinkExactly(network, coord);
+		}
+
+		long withoutLink = scenario.getActivityFacilities().getFacilities().values().stream()
+			.filter(f -> f.getLinkId() == null)
+			.count();
+
+		if (withoutLink > 0)
+			log.warn("{} facilities have no link assigned. Links are assigned by each run, which modifies the shared facilities.", withoutLink);
+
+		config.plans().setInputFile(plans);
+
+		return new ScenarioSnapshot(scenario, Map.copyOf(attributeConverters));
+	}
+
+	/**
+	 * Create a scenario for one run. The population is read from the plans file of the given config.
+	 *
+	 * @param config    config of this run
+	 * @param ownTypes  vehicle types that are copied for this run, so that they can be modified without affecting other runs
+	 */
+	public Scenario createScenario(Config config, Set<Id<VehicleType>> ownTypes) {
+
+		Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+		Map<Id<VehicleType>, VehicleType> types = new HashMap<>();
+
+		for (VehicleType type : base.getVehicles().getVehicleTypes().values()) {
+			VehicleType t = ownTypes.contains(type.getId()) ? copyVehicleType(type) : type;
+			types.put(t.getId(), t);
+			vehicles.addVehicleType(t);
+		}
+
+		// Vehicles are always copied, because vehicles for persons are added per run
+		for (Vehicle vehicle : base.getVehicles().getVehicles().values()) {
+			Vehicle v = VehicleUtils.createVehicle(vehicle.getId(), types.get(vehicle.getType().getId()));
+			AttributesUtils.copyAttributesFromTo(vehicle, v);
+			vehicles.addVehicle(v);
+		}
+
+		Scenario scenario = new ScenarioUtils.ScenarioBuilder(config)
+			.setNetwork(base.getNetwork())
+			.setActivityFacilities(base.getActivityFacilities())
+			.setTransitSchedule(base.getTransitSchedule())
+			.setTransitVehicles(base.getTransitVehicles())
+			.setVehicles(vehicles)
+			.setPopulation(PopulationUtils.createPopulation(config))
+			.build();
+
+		// Same setup as the scenario loader, including the transformation from the input CRS
+		PopulationReader reader = new PopulationReader(config.plans().getInputCRS(), config.global().getCoordinateSystem(), scenario);
+		reader.putAttributeConverters(attributeConverters);
+		reader.parse(config.plans().getInputFileURL(config.getContext()));
+
+		PopulationUtils.printPlansCount(scenario.getPopulation());
+
+		return scenario;
+	}
+
+	/**
+	 * Create a deep copy of a vehicle type.
+	 */
+	static VehicleType copyVehicleType(VehicleType type) {
+
+		VehicleType copy = VehicleUtils.createVehicleType(type.getId());
+
+		copy.setDescription(type.getDescription());
+		copy.setNetworkMode(type.getNetworkMode());
+		copy.setLength(type.getLength());
+		copy.setWidth(type.getWidth());
+		copy.setMaximumVelocity(type.getMaximumVelocity());
+		copy.setPcuEquivalents(type.getPcuEquivalents());
+		copy.setFlowEfficiencyFactor(type.getFlowEfficiencyFactor());
+
+		copy.getCapacity().setSeats(type.getCapacity().getSeats());
+		copy.getCapacity().setStandingRoom(type.getCapacity().getStandingRoom());
+
+		AttributesUtils.copyAttributesFromTo(type, copy);
+		AttributesUtils.copyAttributesFromTo(type.getCapacity(), copy.getCapacity());
+		AttributesUtils.copyAttributesFromTo(type.getEngineInformation(), copy.getEngineInformation());
+		AttributesUtils.copyAttributesFromTo(type.getCostInformation(), copy.getCostInformation());
+
+		return copy;
+	}
+
+}
@@ -0,0 +1,206 @@
+package org.matsim.run;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the cells of a sensitivity sweep inside one JVM, optionally several at the same time.
+ * The available cores are split evenly between the concurrently running cells, and the number of concurrent cells is limited by the maximum heap.
+ * After each finished cell, a manifest with status, runtime and output folder of all cells is written.
+ * <p>
+ * Running more than one cell at the same time is unsafe if results must be reproducible: MATSim keeps global state
+ * (e.g. {@code MatsimRandom} and the output directory logging), which is shared by concurrent runs.
+ * Random numbers drawn by one run then depend on the other runs, and log files contain entries of all runs.
+ * Use {@link #SensitivitySweepExecutor(double)} or one parallel run for reproducible sweeps.
+ */
+public final class SensitivitySweepExecutor {
+
+	private static final Logger log = LogManager.getLogger(SensitivitySweepExecutor.class);
+
+	private final int maxParallelRuns;
+	private final long heapPerRun;
+	private final int availableCores;
+
+	/**
+	 * Status of each cell, in order of submission.
+	 */
+	private final Map<SweepCell, Result> results = new LinkedHashMap<>();
+
+	/**
+	 * Create an executor that runs one cell at a time, which keeps the results reproducible.
+	 *
+	 * @param heapPerRunGb heap in GB one run needs
+	 */
+	public SensitivitySweepExecutor(double heapPerRunGb) {
+		this(1, heapPerRunGb);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxParallelRuns maximum number of cells to run at the same time, values above 1 are not reproducible, see class documentation
+	 * @param heapPerRunGb    heap in GB one run needs, used to limit the number of concurrent runs
+	 */
+	public SensitivitySweepExecutor(int maxParallelRuns, double heapPerRunGb) {
+		this(maxParallelRuns, heapPerRunGb, Runtime.getRuntime().availableProcessors());
+	}
+
+	SensitivitySweepExecutor(int maxParallelRuns, double heapPerRunGb, int availableCores) {
+		if (maxParallelRuns < 1)
+			throw new IllegalArgumentException("At least one parallel run is required.");
+
+		this.maxParallelRuns = maxParallelRuns;
+		this.heapPerRun = (long) (heapPerRunGb * 1024 * 1024 * 1024);
+		this.availableCores = availableCores;
+	}
+
+	/**
+	 * Number of cells that can be run at the same time, given the number of cells and the available heap.
+	 */
+	int getParallelRuns(int numberOfCells) {
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		int byHeap = heapPerRun <= 0 ? Integer.MAX_VALUE : (int) Math.max(1, maxHeap / heapPerRun);
+		return Math.max(1, Math.min(Math.min(maxParallelRuns, numberOfCells), byHeap));
+	}
+
+	/**
+	 * Run all cells and write the manifest. Failures of single cells are logged and recorded, but do not abort the sweep.
+	 *
+	 * @param cells    cells to run
+	 * @param manifest path of the manifest csv
+	 * @param runner   function that performs the run of one cell
+	 */
+	public void run(List<SweepCell> cells, Path manifest, CellRunner runner) {
+
+		int parallel = getParallelRuns(cells.size());
+		int threads = Math.max(1, availableCores / parallel);
+
+		log.info("Running {} cells with {} parallel runs and {} threads per run", cells.size(), parallel, threads);
+
+		for (SweepCell cell : cells) {
+			results.put(cell, new Result(Status.PENDING, Duration.ZERO));
+		}
+
+		writeManifest(manifest);
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallel, r -> {
+			Thread t = new Thread(r);
+			t.setName("sweep-" + t.getId());
+			return t;
+		});
+
+		List<Future<?>> futures = new ArrayList<>();
+		for (SweepCell cell : cells) {
+			futures.add(executor.submit(() -> runCell(cell, threads, manifest, runner)));
+		}
+
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Sweep was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unexpected error in sweep", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void runCell(SweepCell cell, int threads, Path manifest, CellRunner runner) {
+
+		log.info("Starting cell {}", cell.folderName());
+		update(cell, new Result(Status.RUNNING, Duration.ZERO), manifest);
+
+		Instant start = Instant.now();
+		Status status;
+		try {
+			runner.run(cell, threads);
+			status = Status.FINISHED;
+		} catch (Exception e) {
+			log.error("Cell {} failed", cell.folderName(), e);
+			status = Status.FAILED;
+		}
+
+		Duration duration = Duration.between(start, Instant.now());
+		log.info("Cell {} {} after {}", cell.folderName(), status, duration);
+
+		update(cell, new Result(status, duration), manifest);
+	}
+
+	private synchronized void update(SweepCell cell, Result result, Path manifest) {
+		results.put(cell, result);
+		writeManifest(manifest);
+	}
+
+	private synchronized void writeManifest(Path manifest) {
+		try {
+			Files.createDirectories(manifest.toAbsolutePath().getParent());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		try (BufferedWriter writer = Files.newBufferedWriter(manifest);
+			 CSVPrinter p = new CSVPrinter(writer, CSVFormat.DEFAULT.builder()
+				 .setHeader("cell", "planFile", "microSpeed", "microPCE", "iterations", "status", "runtime", "output")
+				 .build())) {
+
+			for (Map.Entry<SweepCell, Result> e : results.entrySet()) {
+				SweepCell cell = e.getKey();
+				p.printRecord(cell.folderName(), cell.planFile(), cell.microSpeed(), cell.microPCE(), cell.iterations(),
+					e.getValue().status(), e.getValue().runtime().toSeconds(), RunSensitivityAnalysis.getOutputDirectory(cell));
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * State of a cell in the manifest.
+	 */
+	public enum Status {
+		PENDING,
+		RUNNING,
+		FINISHED,
+		FAILED
+	}
+
+	/**
+	 * Performs the run of a single cell.
+	 */
+	@FunctionalInterface
+	public interface CellRunner {
+
+		/**
+		 * Run the cell.
+		 *
+		 * @param cell    cell to run
+		 * @param threads number of threads this run may use
+		 */
+		void run(SweepCell cell, int threads) throws Exception;
+	}
+
+	private record Result(Status status, Duration runtime) {
+	}
+
+}
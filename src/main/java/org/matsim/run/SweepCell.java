@@ -0,0 +1,24 @@
+package org.matsim.run;
+
+/**
+ * One cell of the {@link RunSensitivityAnalysis} parameter grid.
+ *
+ * @param planFile   plan file, relative to the config context
+ * @param microSpeed maximum speed of microcars in km/h
+ * @param microPCE   passenger car equivalent of microcars
+ * @param iterations last iteration of the run
+ */
+public record SweepCell(String planFile, double microSpeed, double microPCE, int iterations) {
+
+	/**
+	 * Name of the output folder of this cell, which also serves as its label.
+	 */
+	public String folderName() {
+		return String.format("micro%spct-sp%.0f-pce%.1f-iter%d", extractPercentage(planFile), microSpeed, microPCE, iterations);
+	}
+
+	private static String extractPercentage(String planFile) {
+		String percentage = planFile.replaceAll(".*-micro(\\d+)pct.*", "$1");
+		return String.format("%03d", Integer.parseInt(percentage));
+	}
+}
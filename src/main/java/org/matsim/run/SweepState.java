@@ -0,0 +1,266 @@
+package org.matsim.run;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Persistent state of a sensitivity sweep, which allows to resume an interrupted sweep.
+ * Each cell is identified by a hash of its parameters and the used config, so that changing either of them invalidates the stored state.
+ */
+public final class SweepState {
+
+	private static final Logger log = LogManager.getLogger(SweepState.class);
+
+	private static final Pattern ITERATION_DIR = Pattern.compile("it\\.(\\d+)");
+
+	/**
+	 * File in an iteration directory, which marks that the plans of this iteration have been written completely.
+	 */
+	static final String CHECKPOINT_MARKER = "checkpoint.complete";
+
+	private final Path file;
+	private final String configHash;
+
+	/**
+	 * Status of each cell by key.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	private SweepState(Path file, String configHash) {
+		this.file = file;
+		this.configHash = configHash;
+	}
+
+	/**
+	 * Load existing state, or create an empty one if the file does not exist.
+	 *
+	 * @param file       state file
+	 * @param configFile config used by all cells, its content is part of the cell keys
+	 */
+	public static SweepState load(Path file, Path configFile) {
+
+		SweepState state;
+		try {
+			state = new SweepState(file, com.google.common.io.Files.asByteSource(configFile.toFile()).hash(Hashing.sha256()).toString());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		if (!Files.exists(file))
+			return state;
+
+		try (BufferedReader reader = Files.newBufferedReader(file);
+			 CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader)) {
+
+			for (CSVRecord r : parser) {
+				state.entries.put(r.get("key"), new Entry(r.get("cell"), Status.valueOf(r.get("status"))));
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		log.info("Loaded sweep state with {} cells from {}", state.entries.size(), file);
+
+		return state;
+	}
+
+	/**
+	 * Find the last complete checkpoint of a cell that has been started with the same parameters and config, but not finished.
+	 * Output directories of cells without such an entry, e.g. from a changed config or from outside the sweep, are never resumed.
+	 *
+	 * @param cell            cell to resume
+	 * @param outputDirectory output directory of the cell
+	 * @return the last checkpoint, or empty if the cell needs to start from the beginning
+	 */
+	public synchronized Optional<Checkpoint> findCheckpoint(SweepCell cell, Path outputDirectory) {
+		Entry entry = entries.get(key(cell));
+		if (entry == null || entry.status() != Status.RUNNING)
+			return Optional.empty();
+
+		return findCheckpoint(outputDirectory);
+	}
+
+	/**
+	 * Find the last iteration for which plans have been written completely in the given output directory.
+	 * Plans are only considered complete if the iteration has been marked by the {@link CheckpointListener}.
+	 *
+	 * @return the last checkpoint, or empty if none exists
+	 */
+	static Optional<Checkpoint> findCheckpoint(Path outputDirectory) {
+
+		Path iters = outputDirectory.resolve("ITERS");
+		if (!Files.isDirectory(iters))
+			return Optional.empty();
+
+		Checkpoint last = null;
+		try (Stream<Path> dirs = Files.list(iters)) {
+			for (Path dir : dirs.toList()) {
+				Matcher m = ITERATION_DIR.matcher(dir.getFileName().toString());
+				if (!m.matches())
+					continue;
+
+				int iteration = Integer.parseInt(m.group(1));
+				if (last != null && last.iteration() >= iteration)
+					continue;
+
+				// Plans of an interrupted iteration may be incomplete
+				if (!Files.exists(dir.resolve(CHECKPOINT_MARKER)))
+					continue;
+
+				try (Stream<Path> files = Files.list(dir)) {
+					Optional<Path> plans = files.filter(f -> f.getFileName().toString().endsWith(iteration + ".plans.xml.gz")).findFirst();
+					if (plans.isPresent())
+						last = new Checkpoint(iteration, plans.get());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return Optional.ofNullable(last);
+	}
+
+	/**
+	 * Key identifying the cell together with the config.
+	 */
+	String key(SweepCell cell) {
+		String s = String.join("|", cell.planFile(), Double.toString(cell.microSpeed()), Double.toString(cell.microPCE()),
+			Integer.toString(cell.iterations()), configHash);
+		return Hashing.sha256().hashString(s, StandardCharsets.UTF_8).toString();
+	}
+
+	/**
+	 * Whether the cell, including its emission analysis, has been finished.
+	 */
+	public synchronized boolean isFinished(SweepCell cell) {
+		Entry entry = entries.get(key(cell));
+		return entry != null && entry.status() == Status.FINISHED;
+	}
+
+	/**
+	 * Find the finished cell that is closest to the given one in parameter space.
+	 * Only cells with the same plan file are considered, because other plan files contain a different population.
+	 * Distances of speed and PCE are normalized by their range among all cells.
+	 *
+	 * @param cell  the cell to find a neighbour for
+	 * @param cells all cells of the sweep
+	 * @return the closest finished cell, or empty if there is none
+	 */
+	public synchronized Optional<SweepCell> findNearestFinished(SweepCell cell, Collection<SweepCell> cells) {
+
+		DoubleSummaryStatistics speeds = cells.stream().mapToDouble(SweepCell::microSpeed).summaryStatistics();
+		DoubleSummaryStatistics pces = cells.stream().mapToDouble(SweepCell::microPCE).summaryStatistics();
+
+		double speedRange = speeds.getMax() > speeds.getMin() ? speeds.getMax() - speeds.getMin() : 1;
+		double pceRange = pces.getMax() > pces.getMin() ? pces.getMax() - pces.getMin() : 1;
+
+		return cells.stream()
+			.filter(c -> !c.equals(cell))
+			.filter(c -> c.planFile().equals(cell.planFile()))
+			.filter(this::isFinished)
+			.min(Comparator.comparingDouble(c -> Math.abs(c.microSpeed() - cell.microSpeed()) / speedRange +
+				Math.abs(c.microPCE() - cell.microPCE()) / pceRange));
+	}
+
+	/**
+	 * Update the status of a cell and persist the state.
+	 */
+	public synchronized void update(SweepCell cell, Status status) {
+		entries.put(key(cell), new Entry(cell.folderName(), status));
+		write();
+	}
+
+	private void write() {
+
+		// Write to temporary file first, so that the state is not corrupted if the process is killed
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+
+			try (BufferedWriter writer = Files.newBufferedWriter(tmp);
+				 CSVPrinter p = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader("key", "cell", "status").build())) {
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					p.printRecord(e.getKey(), e.getValue().cell(), e.getValue().status());
+				}
+			}
+
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Status of a cell.
+	 */
+	public enum Status {
+		RUNNING,
+		FINISHED
+	}
+
+	/**
+	 * Plans dumped during an iteration. These are written after replanning and before the mobsim,
+	 * so a run restarted at this iteration continues with exactly these plans.
+	 *
+	 * @param iteration iteration in which the plans were written
+	 * @param plans     path to the plans file
+	 */
+	public record Checkpoint(int iteration, Path plans) {
+	}
+
+	private record Entry(String cell, Status status) {
+	}
+
+	/**
+	 * Marks iterations in which plans have been written. Plans are written before the mobsim, so they are complete at the end of the iteration.
+	 */
+	public static final class CheckpointListener implements IterationEndsListener {
+
+		@Inject
+		private OutputDirectoryHierarchy io;
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+
+			Path plans = Path.of(io.getIterationFilename(event.getIteration(), "plans.xml.gz"));
+			if (!Files.exists(plans))
+				return;
+
+			try {
+				Files.writeString(Path.of(io.getIterationPath(event.getIteration()), CHECKPOINT_MARKER), "");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
@@ -37,6 +37,14 @@ public final class AdvancedScoringConfigGroup extends ReflectiveConfigGroup {
 	@Comment("Distribution of the random error terms.")
 	public VariationType pseudoRandomDistribution = VariationType.normal;
 
+	@Parameter
+	@Comment("Reuse the score of the last scored iteration for agents whose experienced activities and legs did not change. Reused scores have no score explanation.")
+	public boolean incrementalScoring = false;
+
+	@Parameter
+	@Comment("Maximum difference of times in seconds and distances in meters, for an experience to be considered unchanged.")
+	public double incrementalScoringTolerance = 1;
+
 	private final List<ScoringParameters> scoringParameters = new ArrayList<>();
 
 	public AdvancedScoringConfigGroup() {
@@ -1,6 +1,7 @@
 package org.matsim.run.scoring;
 
 import com.google.inject.Inject;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
@@ -10,8 +11,12 @@ import org.matsim.core.scoring.ScoringFunctionFactory;
 import org.matsim.core.scoring.SumScoringFunction;
 import org.matsim.core.scoring.functions.*;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Same as {@link org.matsim.core.scoring.functions.CharyparNagelScoringFunctionFactory} but with {@link PiecewiseLinearlLegScoring}.
+ * If enabled, agents whose experience did not change are not scored again, see {@link IncrementalScoringFunction}.
  */
 public class AdvancedScoringFunctionFactory implements ScoringFunctionFactory {
 
@@ -20,6 +25,10 @@ public class AdvancedScoringFunctionFactory implements ScoringFunctionFactory {
 	private final AnalysisMainModeIdentifier mmi;
 	private final ScoringParametersForPerson params;
 	private final PseudoRandomScorer pseudoRNG;
+	/**
+	 * Experience of each agent when it was last scored, only used for incremental scoring.
+	 */
+	private final Map<Id<Person>, IncrementalScoringFunction.Experience> experiences;
 
 	@Inject
 	public AdvancedScoringFunctionFactory(Config config, AnalysisMainModeIdentifier mmi,
@@ -29,10 +38,19 @@ public class AdvancedScoringFunctionFactory implements ScoringFunctionFactory {
 		this.mmi = mmi;
 		this.params = params;
 		this.pseudoRNG = pseudoRNG;
+		this.experiences = scoring.incrementalScoring ? new ConcurrentHashMap<>() : null;
 	}
 
 	@Override
 	public ScoringFunction createNewScoringFunction(Person person) {
+
+		if (experiences != null)
+			return new IncrementalScoringFunction(person.getId(), () -> createScoringFunction(person), experiences, scoring.incrementalScoringTolerance);
+
+		return createScoringFunction(person);
+	}
+
+	private ScoringFunction createScoringFunction(Person person) {
 		final ScoringParameters parameters = params.getScoringParameters(person);
 
 		SumScoringFunction sumScoringFunction = new SumScoringFunction();
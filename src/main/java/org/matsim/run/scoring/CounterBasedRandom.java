@@ -0,0 +1,70 @@
+package org.matsim.run.scoring;
+
+/**
+ * Stateless random number generator. Each value is a hash of a seed, a key and a counter,
+ * so that the same inputs always give the same number without creating or warming up a generator.
+ * <p>
+ * Values are computed with the mixing function of SplitMix64 applied twice, which passes common statistical test suites.
+ */
+final class CounterBasedRandom {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private CounterBasedRandom() {
+	}
+
+	/**
+	 * Return a pseudo random long for the given inputs.
+	 */
+	static long nextLong(long seed, long key, long counter) {
+		long z = mix(seed + GOLDEN_GAMMA * (key + 1));
+		return mix(z ^ (GOLDEN_GAMMA * (counter + 1)));
+	}
+
+	/**
+	 * Return a uniformly distributed double in the open interval (0, 1).
+	 */
+	static double nextDouble(long seed, long key, long counter) {
+		return ((nextLong(seed, key, counter) >>> 11) + 0.5) * 0x1.0p-53;
+	}
+
+	/**
+	 * Return a standard normal distributed value, using the Box-Muller transform. This uses the counters {@code 2 * counter} and {@code 2 * counter + 1}.
+	 */
+	static double nextGaussian(long seed, long key, long counter) {
+		double u = nextDouble(seed, key, 2 * counter);
+		double v = nextDouble(seed, key, 2 * counter + 1);
+		return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+	}
+
+	/**
+	 * Return a Gumbel distributed value.
+	 *
+	 * @param mu   location parameter
+	 * @param beta scale parameter (must be positive)
+	 */
+	static double nextGumbel(long seed, long key, long counter, double mu, double beta) {
+		double v = nextDouble(seed, key, counter);
+		return mu - Math.log(-Math.log(v)) * beta;
+	}
+
+	/**
+	 * Hash the characters of a string to a key, without allocating.
+	 */
+	static long hash(CharSequence s) {
+		long h = 1125899906842597L;
+		for (int i = 0; i < s.length(); i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Finalizer of SplitMix64.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -15,12 +15,19 @@ public class DistanceGroupModeUtilityParameters extends ModeUtilityParameters {
 	 * Constructor which copies the base params from given modeParams.
 	 */
 	DistanceGroupModeUtilityParameters(ModeUtilityParameters modeParams, DeltaBuilder delta, DistanceGroup[] groups) {
+		this(modeParams, delta.constant, delta.dailyUtilityConstant, groups);
+	}
+
+	/**
+	 * Constructor which copies the base params and adds the given deltas to the constants.
+	 */
+	DistanceGroupModeUtilityParameters(ModeUtilityParameters modeParams, double deltaConstant, double deltaDailyUtilityConstant, DistanceGroup[] groups) {
 		super(modeParams.marginalUtilityOfTraveling_s,
 			modeParams.marginalUtilityOfDistance_m,
 			modeParams.monetaryDistanceCostRate,
-			modeParams.constant + delta.constant,
+			modeParams.constant + deltaConstant,
 			modeParams.dailyMoneyConstant,
-			modeParams.dailyUtilityConstant + delta.dailyUtilityConstant);
+			modeParams.dailyUtilityConstant + deltaDailyUtilityConstant);
 
 		this.groups = groups;
 	}
@@ -33,14 +40,18 @@ public class DistanceGroupModeUtilityParameters extends ModeUtilityParameters {
 		if (groups == null)
 			return 0;
 
-		DistanceGroup group = groups[0];
-		for (int i = 1; i < groups.length; i++) {
-			if (groups[i].dist() > dist)
-				break;
-
-			group = groups[i];
+		// Binary search for the first group with a lower bound greater than dist, the previous one is used
+		int lo = 1;
+		int hi = groups.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (groups[mid].dist() > dist)
+				hi = mid;
+			else
+				lo = mid + 1;
 		}
 
+		DistanceGroup group = groups[lo - 1];
 		return group.constant() + group.utilPerM() * (dist - group.dist());
 	}
 
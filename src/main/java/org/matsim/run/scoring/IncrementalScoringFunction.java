@@ -0,0 +1,209 @@
+package org.matsim.run.scoring;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonScoreEvent;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scoring.ScoringFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Scoring function that reuses the score of the last scored iteration if the experience of the agent did not change.
+ * All inputs are recorded and only passed to the actual scoring function in {@link #finish()}, if they differ from the stored experience.
+ * <p>
+ * Times and distances are compared with a tolerance. Types, modes, and amounts of money and score must be equal.
+ * The stored experience is only updated when the agent is actually scored, so that small differences can not accumulate.
+ * Only events that are used by the scoring functions of {@link AdvancedScoringFunctionFactory} are recorded.
+ * <p>
+ * Reused scores have no explanation, i.e. {@link #explainScore(StringBuilder)} writes nothing.
+ * Keeping the explanation of every agent would need more memory than the experience itself.
+ * <p>
+ * The recorded calls keep references to the plan elements and events of the agent until {@link #finish()} is called.
+ */
+final class IncrementalScoringFunction implements ScoringFunction {
+
+	private final Id<Person> personId;
+	private final Supplier<ScoringFunction> factory;
+	private final Map<Id<Person>, Experience> cache;
+	private final double tolerance;
+
+	/**
+	 * Recorded calls, which are replayed on the actual scoring function if needed.
+	 */
+	private final List<Consumer<ScoringFunction>> calls = new ArrayList<>();
+
+	/**
+	 * Hash of all values that need to be equal.
+	 */
+	private long hash = 1;
+	private final FloatArrayList values = new FloatArrayList();
+
+	private ScoringFunction delegate;
+	private double score;
+
+	IncrementalScoringFunction(Id<Person> personId, Supplier<ScoringFunction> factory, Map<Id<Person>, Experience> cache, double tolerance) {
+		this.personId = personId;
+		this.factory = factory;
+		this.cache = cache;
+		this.tolerance = tolerance;
+	}
+
+	private void exact(long v) {
+		hash = CounterBasedRandom.mix(31 * hash + v);
+	}
+
+	private void exact(String s) {
+		exact(s == null ? 0 : CounterBasedRandom.hash(s));
+	}
+
+	private void exact(double v) {
+		exact(Double.doubleToLongBits(v));
+	}
+
+	private void approx(double v) {
+		values.add((float) v);
+	}
+
+	@Override
+	public void handleActivity(Activity activity) {
+		exact(1);
+		exact(activity.getType());
+		approx(activity.getStartTime().orElse(Double.NaN));
+		approx(activity.getEndTime().orElse(Double.NaN));
+		calls.add(f -> f.handleActivity(activity));
+	}
+
+	@Override
+	public void handleLeg(Leg leg) {
+		exact(2);
+		exact(leg.getMode());
+		approx(leg.getDepartureTime().orElse(Double.NaN));
+		approx(leg.getTravelTime().orElse(Double.NaN));
+		approx(leg.getRoute() != null ? leg.getRoute().getDistance() : Double.NaN);
+		calls.add(f -> f.handleLeg(leg));
+	}
+
+	@Override
+	public void handleTrip(TripStructureUtils.Trip trip) {
+		exact(3);
+		calls.add(f -> f.handleTrip(trip));
+	}
+
+	@Override
+	public void agentStuck(double time) {
+		exact(4);
+		approx(time);
+		calls.add(f -> f.agentStuck(time));
+	}
+
+	@Override
+	public void addMoney(double amount) {
+		exact(5);
+		exact(amount);
+		calls.add(f -> f.addMoney(amount));
+	}
+
+	@Override
+	public void addScore(double amount) {
+		exact(6);
+		exact(amount);
+		calls.add(f -> f.addScore(amount));
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		switch (event) {
+			case ActivityEndEvent e -> exact(e.getActType());
+			case PersonDepartureEvent e -> exact(e.getLegMode());
+			case PersonEntersVehicleEvent e -> exact(7);
+			case PersonScoreEvent e -> exact(e.getAmount());
+			default -> {
+				return;
+			}
+		}
+
+		exact(event.getEventType());
+		approx(event.getTime());
+		calls.add(f -> f.handleEvent(event));
+	}
+
+	@Override
+	public void finish() {
+
+		Experience last = cache.get(personId);
+		if (last != null && last.matches(hash, values, tolerance)) {
+			score = last.score;
+		} else {
+			delegate = factory.get();
+			for (Consumer<ScoringFunction> call : calls) {
+				call.accept(delegate);
+			}
+			delegate.finish();
+			score = delegate.getScore();
+
+			cache.put(personId, new Experience(hash, values.toFloatArray(), score));
+		}
+
+		// References to events and plan elements are not needed anymore
+		calls.clear();
+		values.clear();
+		values.trim();
+	}
+
+	@Override
+	public double getScore() {
+		return score;
+	}
+
+	@Override
+	public void explainScore(StringBuilder out) {
+		if (delegate != null)
+			delegate.explainScore(out);
+	}
+
+	/**
+	 * Experience of an agent in the iteration it was last scored.
+	 */
+	static final class Experience {
+
+		private final long hash;
+		private final float[] values;
+		private final double score;
+
+		private Experience(long hash, float[] values, double score) {
+			this.hash = hash;
+			this.values = values;
+			this.score = score;
+		}
+
+		private boolean matches(long otherHash, FloatArrayList other, double tolerance) {
+
+			if (hash != otherHash || values.length != other.size())
+				return false;
+
+			for (int i = 0; i < values.length; i++) {
+				float a = values[i];
+				float b = other.getFloat(i);
+				if (Float.isNaN(a) || Float.isNaN(b)) {
+					if (Float.isNaN(a) != Float.isNaN(b))
+						return false;
+				} else if (Math.abs(a - b) > tolerance)
+					return false;
+			}
+
+			return true;
+		}
+	}
+}
@@ -1,18 +1,9 @@
 package org.matsim.run.scoring;
 
-import com.google.common.base.Joiner;
-import com.google.common.primitives.Longs;
 import com.google.inject.Inject;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.rng.RestorableUniformRandomProvider;
-import org.apache.commons.rng.core.RandomProviderDefaultState;
-import org.apache.commons.rng.simple.RandomSource;
-import org.apache.commons.statistics.distribution.ContinuousDistribution;
-import org.apache.commons.statistics.distribution.NormalDistribution;
-import org.apache.commons.statistics.distribution.TruncatedNormalDistribution;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
@@ -33,6 +24,7 @@ import org.matsim.core.scoring.functions.ScoringParametersForPerson;
 import org.matsim.pt.PtConstants;
 import org.matsim.pt.config.TransitConfigGroup;
 
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -43,21 +35,25 @@ public class IndividualPersonScoringParameters implements ScoringParametersForPe
 
 	private static final Logger log = LogManager.getLogger(IndividualPersonScoringParameters.class);
 	/**
-	 * Header for info file.
+	 * Collects debug information to be written out after first iteration.
 	 */
-	final Set<String> header = new LinkedHashSet<>();
-	/**
-	 * This map contains debug information to be written out after first iteration.
-	 */
-	final Map<Id<Person>, Object2DoubleMap<String>> info = new ConcurrentHashMap<>();
+	final UtilVariationsWriter variations;
 	/**
 	 * Cache instances of {@link ActivityUtilityParameters} for each subpopulation.
 	 */
 	private final Map<String, Map<String, ActivityUtilityParameters>> actUtils = new ConcurrentHashMap<>();
 	/**
-	 * Cache instances of {@link ScoringParameters} for each person.
+	 * Cache instances of {@link ScoringParameters} for each person. Persons without individual values refer to shared instances.
 	 */
 	private final IdMap<Person, ScoringParameters> cache;
+	/**
+	 * Parameters of each subpopulation without any changes.
+	 */
+	private final Map<String, ScoringParameters> baseParams = new ConcurrentHashMap<>();
+	/**
+	 * Interned parameters of persons that only have deterministic deltas.
+	 */
+	private final Map<SharedKey, ScoringParameters> shared = new ConcurrentHashMap<>();
 	/**
 	 * Cache and reuse distance group arrays.
 	 */
@@ -90,6 +86,7 @@ public class IndividualPersonScoringParameters implements ScoringParametersForPe
 		this.globalAvgIncome = computeAvgIncome(scenario.getPopulation());
 		this.categories = Category.fromConfigParams(this.scoring.getScoringParameters());
 		this.cache = new IdMap<>(Person.class, scenario.getPopulation().getPersons().size());
+		this.variations = new UtilVariationsWriter(Path.of(scenario.getConfig().controller().getOutputDirectory()));
 
 		// Create uncorrelated seed from the global seed
 		SplittableRandom rng = new SplittableRandom(scenario.getConfig().global().getRandomSeed());
@@ -97,7 +94,7 @@ public class IndividualPersonScoringParameters implements ScoringParametersForPe
 			rng.nextLong();
 		}
 
-		byte[] seed = Longs.toByteArray(rng.nextLong());
+		long seed = rng.nextLong();
 		this.rnd = ThreadLocal.withInitial(() -> new Context(seed));
 	}
 
@@ -176,203 +173,258 @@ public class IndividualPersonScoringParameters implements ScoringParametersForPe
 
 	@Override
 	public ScoringParameters getScoringParameters(Person person) {
+		return this.cache.computeIfAbsent(person.getId(), id -> createScoringParameters(person));
+	}
 
-		return this.cache.computeIfAbsent(person.getId(), id -> {
+	private ScoringParameters createScoringParameters(Person person) {
 
-			String subpopulation = PopulationUtils.getSubpopulation(person);
-			ScoringConfigGroup.ScoringParameterSet scoringParameters = basicScoring.getScoringParameters(subpopulation);
+		String subpopulation = PopulationUtils.getSubpopulation(person);
+		ScoringConfigGroup.ScoringParameterSet scoringParameters = basicScoring.getScoringParameters(subpopulation);
 
-			// Activity params can be reused per subpopulation
-			Map<String, ActivityUtilityParameters> activityParams = actUtils.computeIfAbsent(subpopulation, k -> {
-				Map<String, ActivityUtilityParameters> ap = new TreeMap<>();
-				for (ScoringConfigGroup.ActivityParams params : scoringParameters.getActivityParams()) {
-					ActivityUtilityParameters.Builder factory = new ActivityUtilityParameters.Builder(params);
-					ap.put(params.getActivityType(), factory.build());
-				}
+		// Activity params can be reused per subpopulation
+		Map<String, ActivityUtilityParameters> activityParams = actUtils.computeIfAbsent(subpopulation, k -> {
+			Map<String, ActivityUtilityParameters> ap = new TreeMap<>();
+			for (ScoringConfigGroup.ActivityParams params : scoringParameters.getActivityParams()) {
+				ActivityUtilityParameters.Builder factory = new ActivityUtilityParameters.Builder(params);
+				ap.put(params.getActivityType(), factory.build());
+			}
 
-				// The code to add this activity type is always copied between different scoring implementations
-				// it might not be actually needed anymore (because default staging activities are also added elsewhere)
-				// but it's not clear if it's safe to remove it.
-				if (transitConfig.isUseTransit()) {
-					ScoringConfigGroup.ActivityParams transitActivityParams = new ScoringConfigGroup.ActivityParams(PtConstants.TRANSIT_ACTIVITY_TYPE);
-					transitActivityParams.setTypicalDuration(120.0);
-					transitActivityParams.setOpeningTime(0.);
-					transitActivityParams.setClosingTime(0.);
-					ActivityUtilityParameters.Builder modeParamsBuilder = new ActivityUtilityParameters.Builder(transitActivityParams);
-					modeParamsBuilder.setScoreAtAll(false);
-					ap.put(PtConstants.TRANSIT_ACTIVITY_TYPE, modeParamsBuilder.build());
-				}
+			// The code to add this activity type is always copied between different scoring implementations
+			// it might not be actually needed anymore (because default staging activities are also added elsewhere)
+			// but it's not clear if it's safe to remove it.
+			if (transitConfig.isUseTransit()) {
+				ScoringConfigGroup.ActivityParams transitActivityParams = new ScoringConfigGroup.ActivityParams(PtConstants.TRANSIT_ACTIVITY_TYPE);
+				transitActivityParams.setTypicalDuration(120.0);
+				transitActivityParams.setOpeningTime(0.);
+				transitActivityParams.setClosingTime(0.);
+				ActivityUtilityParameters.Builder modeParamsBuilder = new ActivityUtilityParameters.Builder(transitActivityParams);
+				modeParamsBuilder.setScoreAtAll(false);
+				ap.put(PtConstants.TRANSIT_ACTIVITY_TYPE, modeParamsBuilder.build());
+			}
+
+			return ap;
+		});
+
+		// Parameters of the subpopulation without any person specific changes
+		ScoringParameters base = baseParams.computeIfAbsent(subpopulation, k -> new ScoringParameters.Builder(basicScoring,
+			scoringParameters, activityParams, scenario.getConfig().scenario()).build());
+
+		// Whether the parameters contain values that are specific to this person and therefore should not be shared
+		boolean individual = false;
+
+		double marginalUtilityOfMoney = scoringParameters.getMarginalUtilityOfMoney();
+		Double personalIncome = PersonUtils.getIncome(person);
+		// Income dependent scoring might be disabled
+		if (!Double.isNaN(globalAvgIncome) && personalIncome != null) {
+			if (personalIncome != 0) {
+				marginalUtilityOfMoney = scoringParameters.getMarginalUtilityOfMoney() *
+					Math.pow(globalAvgIncome / personalIncome, this.scoring.incomeExponent);
+				individual = true;
+			} else {
+				log.warn("You have set income to {} for person {}. This is invalid and gets ignored.Instead, the marginalUtilityOfMoney is derived from the subpopulation's scoring parameters.", personalIncome, person);
+			}
+		}
+
+		Map<String, DistanceGroupModeUtilityParameters.DeltaBuilder> deltaParams = new HashMap<>();
+
+		this.rnd.get().setSeed(person);
+
+		for (AdvancedScoringConfigGroup.ScoringParameters parameter : scoring.getScoringParameters()) {
 
-				return ap;
-			});
+			if (Category.matchAttributesWithConfig(person.getAttributes(), parameter, categories)) {
+				for (Map.Entry<String, AdvancedScoringConfigGroup.ModeParams> mode : parameter.getModeParams().entrySet()) {
 
-			ScoringParameters.Builder builder = new ScoringParameters.Builder(basicScoring,
-				scoringParameters, activityParams, scenario.getConfig().scenario());
+					DistanceGroupModeUtilityParameters.DeltaBuilder b =
+						deltaParams.computeIfAbsent(mode.getKey(), k -> new DistanceGroupModeUtilityParameters.DeltaBuilder());
 
-			Double personalIncome = PersonUtils.getIncome(person);
-			// Income dependent scoring might be disabled
-			if (!Double.isNaN(globalAvgIncome) && personalIncome != null) {
-				if (personalIncome != 0) {
-					builder.setMarginalUtilityOfMoney(scoringParameters.getMarginalUtilityOfMoney() *
-						Math.pow(globalAvgIncome / personalIncome, this.scoring.incomeExponent));
-				} else {
-					log.warn("You have set income to {} for person {}. This is invalid and gets ignored.Instead, the marginalUtilityOfMoney is derived from the subpopulation's scoring parameters.", personalIncome, person);
+					b.addUtilsDistance(mode.getValue());
+					individual |= addDeltaParams(this.rnd.get(), b, mode.getValue());
 				}
 			}
+		}
 
-			Map<String, DistanceGroupModeUtilityParameters.DeltaBuilder> deltaParams = new HashMap<>();
+		// Attributes in the former string format are converted
+		UtilityDeltas existing = UtilityDeltas.of(person.getAttributes().getAttribute(UtilityDeltas.ATTRIBUTE));
+		if (existing == null)
+			existing = new UtilityDeltas();
 
-			this.rnd.get().setSeed(person);
+		Map<String, ModeDelta> modes = new TreeMap<>();
 
-			for (AdvancedScoringConfigGroup.ScoringParameters parameter : scoring.getScoringParameters()) {
+		// Collect final adjustments information
+		Object2DoubleMap<String> values = deltaParams.isEmpty() ? null : new Object2DoubleOpenHashMap<>();
 
-				if (Category.matchAttributesWithConfig(person.getAttributes(), parameter, categories)) {
-					for (Map.Entry<String, AdvancedScoringConfigGroup.ModeParams> mode : parameter.getModeParams().entrySet()) {
+		for (Map.Entry<String, DistanceGroupModeUtilityParameters.DeltaBuilder> mode : deltaParams.entrySet()) {
+			ModeUtilityParameters params = base.modeParams.get(mode.getKey());
+			DistanceGroupModeUtilityParameters.DeltaBuilder delta = mode.getValue();
 
-						DistanceGroupModeUtilityParameters.DeltaBuilder b =
-							deltaParams.computeIfAbsent(mode.getKey(), k -> new DistanceGroupModeUtilityParameters.DeltaBuilder());
+			// These arrays are re-used if possible
+			DistanceGroup[] groups = distGroups.computeIfAbsent(delta.getPerDistGroup(), k -> calcDistanceGroups(scoring.distGroups, k));
 
-						b.addUtilsDistance(mode.getValue());
-						addDeltaParams(this.rnd.get(), b, mode.getValue());
-					}
-				}
+			// This may overwrite the preferences with the one stored
+			individual |= loadPreferences(mode.getKey(), delta, person, existing);
+
+			modes.put(mode.getKey(), new ModeDelta(delta.constant, delta.dailyUtilityConstant, groups));
+
+			// Write the overall constants, but only if they are different to the base values
+			if (delta.constant != 0) {
+				values.put(mode.getKey() + "_constant", params.constant + delta.constant);
+				existing.setConstant(mode.getKey(), delta.constant);
 			}
 
-			Object attr = person.getAttributes().getAttribute("utilDelta");
-			Object2DoubleMap<String> existing = new Object2DoubleOpenHashMap<>();
-			if (attr instanceof String s) {
-				String[] split = s.split("\\|");
-				for (String s1 : split) {
-					String[] split1 = s1.split("=");
-					existing.put(split1[0], Double.parseDouble(split1[1]));
-				}
+			if (delta.dailyUtilityConstant != 0) {
+				values.put(mode.getKey() + "_dailyConstant", params.dailyUtilityConstant + delta.dailyUtilityConstant);
+				existing.setDailyConstant(mode.getKey(), delta.dailyUtilityConstant);
 			}
 
-			for (Map.Entry<String, DistanceGroupModeUtilityParameters.DeltaBuilder> mode : deltaParams.entrySet()) {
-				ModeUtilityParameters params = builder.getModeParameters(mode.getKey());
-				DistanceGroupModeUtilityParameters.DeltaBuilder delta = mode.getValue();
+			if (groups != null) {
+				for (DistanceGroup group : groups) {
+					values.put("%s_dist_%.0f".formatted(mode.getKey(), group.dist()), group.utilPerM());
+				}
+			}
+		}
 
-				// These arrays are re-used if possible
-				DistanceGroup[] groups = distGroups.computeIfAbsent(delta.getPerDistGroup(), k -> calcDistanceGroups(scoring.distGroups, k));
+		if (values != null)
+			variations.add(person.getId(), values);
 
-				// This may overwrite the preferences with the one stored
-				loadPreferences(mode.getKey(), delta, person, existing);
+		// Stored as string, which can be read back without a converter
+		if (!existing.isEmpty())
+			person.getAttributes().putAttribute(UtilityDeltas.ATTRIBUTE, existing.toString());
 
-				DistanceGroupModeUtilityParameters p = new DistanceGroupModeUtilityParameters(params, delta, groups);
-				builder.setModeParameters(mode.getKey(), p);
+		if (individual)
+			return buildScoringParameters(scoringParameters, activityParams, base, marginalUtilityOfMoney, modes);
 
-				// Collect final adjustments information
-				Object2DoubleMap<String> values = info.computeIfAbsent(person.getId(), k -> new Object2DoubleOpenHashMap<>());
+		if (modes.isEmpty())
+			return base;
 
-				// Write the overall constants, but only if they are different to the base values
-				if (delta.constant != 0) {
-					values.put(mode.getKey() + "_constant", p.constant);
-					existing.put(mode.getKey() + "_constant", delta.constant);
-				}
+		// Persons with the same subpopulation and the same deterministic deltas share one instance
+		return shared.computeIfAbsent(new SharedKey(subpopulation, modes),
+			k -> buildScoringParameters(scoringParameters, activityParams, base, marginalUtilityOfMoney, modes));
+	}
 
-				if (delta.dailyUtilityConstant != 0) {
-					values.put(mode.getKey() + "_dailyConstant", p.dailyUtilityConstant);
-					existing.put(mode.getKey() + "_dailyConstant", delta.dailyUtilityConstant);
-				}
+	private ScoringParameters buildScoringParameters(ScoringConfigGroup.ScoringParameterSet scoringParameters,
+													 Map<String, ActivityUtilityParameters> activityParams, ScoringParameters base,
+													 double marginalUtilityOfMoney, Map<String, ModeDelta> modes) {
 
-				if (groups != null) {
-					for (DistanceGroup group : groups) {
-						values.put("%s_dist_%.0f".formatted(mode.getKey(), group.dist()), group.utilPerM());
-					}
-				}
+		ScoringParameters.Builder builder = new ScoringParameters.Builder(basicScoring,
+			scoringParameters, activityParams, scenario.getConfig().scenario());
 
-				header.addAll(values.keySet());
-			}
+		builder.setMarginalUtilityOfMoney(marginalUtilityOfMoney);
 
-			if (!existing.isEmpty()) {
-				Joiner.MapJoiner mapJoiner = Joiner.on("|").withKeyValueSeparator("=");
-				person.getAttributes().putAttribute("utilDelta", mapJoiner.join(existing));
-			}
+		for (Map.Entry<String, ModeDelta> mode : modes.entrySet()) {
+			ModeDelta delta = mode.getValue();
+			builder.setModeParameters(mode.getKey(), new DistanceGroupModeUtilityParameters(base.modeParams.get(mode.getKey()),
+				delta.constant(), delta.dailyUtilityConstant(), delta.groups()));
+		}
 
-			return builder.build();
-		});
+		return builder.build();
 	}
 
-	private void loadPreferences(String mode, DistanceGroupModeUtilityParameters.DeltaBuilder delta, Person person, Object2DoubleMap<String> existing) {
+	/**
+	 * Load stored preferences of a person.
+	 *
+	 * @return whether the stored preferences differ from the computed ones
+	 */
+	private boolean loadPreferences(String mode, DistanceGroupModeUtilityParameters.DeltaBuilder delta, Person person, UtilityDeltas existing) {
 
 		boolean isRefPerson = person.getAttributes().getAttribute(TripAnalysis.ATTR_REF_ID) != null;
 
 		if (scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.none ||
 			(isRefPerson && scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.skipRefPersons)) {
-			return;
+			return false;
 		}
 
 		// Else, require that the attributes are present
-		if (!existing.containsKey(mode + "_constant") && scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.requireAttribute) {
+		if (!existing.hasConstant(mode) && scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.requireAttribute) {
 			throw new IllegalArgumentException("Person " + person.getId() + " does not have attribute " + mode + "_constant");
 		}
-		if (!existing.containsKey(mode + "_dailyConstant") && scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.requireAttribute) {
+		if (!existing.hasDailyConstant(mode) && scoring.loadPreferences == AdvancedScoringConfigGroup.LoadPreferences.requireAttribute) {
 			throw new IllegalArgumentException("Person " + person.getId() + " does not have attribute " + mode + "_dailyConstant");
 		}
 
+		double constant = delta.constant;
+		double dailyUtilityConstant = delta.dailyUtilityConstant;
+
 		// Use attributes if they are present
-		if (existing.containsKey(mode + "_constant"))
-			delta.constant = existing.getDouble(mode + "_constant") ;
+		if (existing.hasConstant(mode))
+			delta.constant = existing.getConstant(mode);
 
-		if (existing.containsKey(mode + "_dailyConstant"))
-			delta.dailyUtilityConstant = existing.getDouble(mode + "_dailyConstant");
+		if (existing.hasDailyConstant(mode))
+			delta.dailyUtilityConstant = existing.getDailyConstant(mode);
+
+		return Double.compare(constant, delta.constant) != 0 || Double.compare(dailyUtilityConstant, delta.dailyUtilityConstant) != 0;
 	}
 
 	/**
 	 * Compute or retrieve delta params for person.
+	 *
+	 * @return whether the delta has been sampled from a distribution
 	 */
-	private void addDeltaParams(Context ctx, DistanceGroupModeUtilityParameters.DeltaBuilder delta, AdvancedScoringConfigGroup.ModeParams params) {
-
-		ContinuousDistribution.Sampler normal = ctx.normal.createSampler(ctx.rnd());
-		ContinuousDistribution.Sampler tn = ctx.tn.createSampler(ctx.rnd());
+	private boolean addDeltaParams(Context ctx, DistanceGroupModeUtilityParameters.DeltaBuilder delta, AdvancedScoringConfigGroup.ModeParams params) {
 
 		switch (params.varConstant) {
 			case fixed -> delta.constant += params.deltaConstant;
-			case normal -> delta.constant += normal.sample() * params.deltaConstant;
-			case truncatedNormal -> delta.constant += tn.sample() * params.deltaConstant;
+			case normal -> delta.constant += ctx.nextNormal() * params.deltaConstant;
+			case truncatedNormal -> delta.constant += ctx.nextTruncatedNormal() * params.deltaConstant;
 			default -> throw new IllegalArgumentException("Unsupported varConstant: " + params.varConstant);
 		}
 
 		switch (params.varDailyConstant) {
 			case fixed -> delta.dailyUtilityConstant += params.deltaDailyConstant;
-			case normal -> delta.dailyUtilityConstant += normal.sample() * params.deltaDailyConstant;
-			case truncatedNormal -> delta.dailyUtilityConstant += tn.sample() * params.deltaDailyConstant;
+			case normal -> delta.dailyUtilityConstant += ctx.nextNormal() * params.deltaDailyConstant;
+			case truncatedNormal -> delta.dailyUtilityConstant += ctx.nextTruncatedNormal() * params.deltaDailyConstant;
 			default -> throw new IllegalArgumentException("Unsupported varDailyConstant: " + params.varDailyConstant);
 		}
+
+		return (params.varConstant != AdvancedScoringConfigGroup.VariationType.fixed && params.deltaConstant != 0) ||
+			(params.varDailyConstant != AdvancedScoringConfigGroup.VariationType.fixed && params.deltaDailyConstant != 0);
+	}
+
+	/**
+	 * Deltas of one mode. Distance groups are compared by identity, which is sufficient because these arrays are re-used.
+	 */
+	private record ModeDelta(double constant, double dailyUtilityConstant, DistanceGroup[] groups) {
+	}
+
+	/**
+	 * Key for parameters that are shared between persons.
+	 */
+	private record SharedKey(String subpopulation, Map<String, ModeDelta> modes) {
 	}
 
 	/**
 	 * Thread-local context for random number generation. This makes generation thread-safe and consistent independently of threads and order of persons.
+	 * Numbers are derived from the global seed, the person id and the number of values drawn for this person, see {@link CounterBasedRandom}.
 	 */
-	private record Context(NormalDistribution normal, TruncatedNormalDistribution tn, byte[] seed, RestorableUniformRandomProvider rnd) {
+	private static final class Context {
 
-		Context(byte[] seed) {
-			this(NormalDistribution.of(0, 1),
-				TruncatedNormalDistribution.of(0, 1, 0, Double.POSITIVE_INFINITY),
-				seed,
-				RandomSource.KISS.create());
+		private final long seed;
+		private long person;
+		private long counter;
+
+		Context(long seed) {
+			this.seed = seed;
 		}
 
 		/**
-		 * Set the state of rnd specific to person and configured global seed.
+		 * Reset the sequence to the one specific to person and configured global seed.
 		 */
 		void setSeed(Person p) {
+			person = CounterBasedRandom.hash(p.getId().toString());
+			counter = 0;
+		}
 
-			byte[] state = new byte[20];
-			byte[] person = p.getId().toString().getBytes();
-
-			// Reverse, because the more significant bytes are at the end
-			ArrayUtils.reverse(person);
-
-			System.arraycopy(seed, 0, state, 0, 8);
-			System.arraycopy(person, 0, state, 8, Math.min(person.length, 12));
-
-			rnd.restoreState(new RandomProviderDefaultState(state));
+		/**
+		 * Sample from the standard normal distribution.
+		 */
+		double nextNormal() {
+			return CounterBasedRandom.nextGaussian(seed, person, counter++);
+		}
 
-			// Warm up the generator
-			for (int i = 0; i < 100; i++) {
-				rnd.nextLong();
-			}
+		/**
+		 * Sample from the standard normal distribution truncated to positive values.
+		 */
+		double nextTruncatedNormal() {
+			return Math.abs(nextNormal());
 		}
 	}
 }
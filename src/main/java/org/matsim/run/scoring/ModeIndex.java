@@ -0,0 +1,50 @@
+package org.matsim.run.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global dense index of mode names. Indices are assigned in the order modes are first seen and never change during a run.
+ */
+final class ModeIndex {
+
+	private static final Map<String, Integer> INDEX = new ConcurrentHashMap<>();
+	private static final List<String> MODES = new ArrayList<>();
+
+	private ModeIndex() {
+	}
+
+	/**
+	 * Return the index of a mode, creating it if necessary.
+	 */
+	static int of(String mode) {
+		Integer idx = INDEX.get(mode);
+		if (idx != null)
+			return idx;
+
+		synchronized (MODES) {
+			return INDEX.computeIfAbsent(mode, k -> {
+				MODES.add(k);
+				return MODES.size() - 1;
+			});
+		}
+	}
+
+	/**
+	 * Return the mode name of an index.
+	 */
+	static String get(int index) {
+		synchronized (MODES) {
+			return MODES.get(index);
+		}
+	}
+
+	/**
+	 * Number of modes known so far.
+	 */
+	static int size() {
+		return INDEX.size();
+	}
+}
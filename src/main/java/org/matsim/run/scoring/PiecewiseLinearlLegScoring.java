@@ -54,6 +54,7 @@ public final class PiecewiseLinearlLegScoring implements org.matsim.core.scoring
 	private final Set<String> ptModes;
 	private final double marginalUtilityOfMoney;
 	private final Set<String> modesAlreadyConsideredForDailyConstants;
+	private ModeUtilityParameters ptParams;
 	private double score;
 	private boolean nextEnterVehicleIsFirstOfTrip = true;
 	private boolean nextStartPtLegIsFirstOfTrip = true;
@@ -168,36 +169,42 @@ public final class PiecewiseLinearlLegScoring implements org.matsim.core.scoring
 
 	@Override
 	public void handleEvent(Event event) {
-		if (event instanceof ActivityEndEvent) {
-			// When there is a "real" activity, flags are reset:
-			if (!PtConstants.TRANSIT_ACTIVITY_TYPE.equals(((ActivityEndEvent) event).getActType())) {
-				this.nextEnterVehicleIsFirstOfTrip = true;
-				this.nextStartPtLegIsFirstOfTrip = true;
-			}
-			this.lastActivityEndTime = event.getTime();
-		}
-
-		if (event instanceof PersonEntersVehicleEvent && currentLegIsPtLeg) {
-			if (!this.nextEnterVehicleIsFirstOfTrip) {
-				// all vehicle entering after the first triggers the disutility of line switch:
-				this.score += params.utilityOfLineSwitch;
+		switch (event) {
+			case ActivityEndEvent e -> {
+				// When there is a "real" activity, flags are reset:
+				if (!PtConstants.TRANSIT_ACTIVITY_TYPE.equals(e.getActType())) {
+					this.nextEnterVehicleIsFirstOfTrip = true;
+					this.nextStartPtLegIsFirstOfTrip = true;
+				}
+				this.lastActivityEndTime = e.getTime();
 			}
-			this.nextEnterVehicleIsFirstOfTrip = false;
-			// add score of waiting, _minus_ score of travelling (since it is added in the legscoring above):
-			this.score += (event.getTime() - this.lastActivityEndTime) * (this.params.marginalUtilityOfWaitingPt_s - this.params.modeParams.get(TransportMode.pt).marginalUtilityOfTraveling_s);
-		}
+			case PersonEntersVehicleEvent e when currentLegIsPtLeg -> {
+				if (!this.nextEnterVehicleIsFirstOfTrip) {
+					// all vehicle entering after the first triggers the disutility of line switch:
+					this.score += params.utilityOfLineSwitch;
+				}
+				this.nextEnterVehicleIsFirstOfTrip = false;
 
-		if (event instanceof PersonDepartureEvent) {
-			String mode = ((PersonDepartureEvent) event).getLegMode();
+				if (ptParams == null)
+					ptParams = this.params.modeParams.get(TransportMode.pt);
 
-			this.currentLegIsPtLeg = this.ptModes.contains(mode);
-			if (currentLegIsPtLeg) {
-				if (!this.nextStartPtLegIsFirstOfTrip) {
-					this.score -= params.modeParams.get(mode).constant;
-					// (yyyy deducting this again, since is it wrongly added above.  should be consolidated; this is so the code
-					// modification is minimally invasive.  kai, dec'12)
+				// add score of waiting, _minus_ score of travelling (since it is added in the legscoring above):
+				this.score += (e.getTime() - this.lastActivityEndTime) * (this.params.marginalUtilityOfWaitingPt_s - ptParams.marginalUtilityOfTraveling_s);
+			}
+			case PersonDepartureEvent e -> {
+				String mode = e.getLegMode();
+
+				this.currentLegIsPtLeg = this.ptModes.contains(mode);
+				if (currentLegIsPtLeg) {
+					if (!this.nextStartPtLegIsFirstOfTrip) {
+						this.score -= params.modeParams.get(mode).constant;
+						// (yyyy deducting this again, since is it wrongly added above.  should be consolidated; this is so the code
+						// modification is minimally invasive.  kai, dec'12)
+					}
+					this.nextStartPtLegIsFirstOfTrip = false;
 				}
-				this.nextStartPtLegIsFirstOfTrip = false;
+			}
+			default -> {
 			}
 		}
 	}
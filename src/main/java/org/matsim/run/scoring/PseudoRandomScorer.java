@@ -1,11 +1,6 @@
 package org.matsim.run.scoring;
 
 import com.google.inject.Inject;
-import org.apache.commons.math3.exception.OutOfRangeException;
-import org.apache.commons.math3.util.FastMath;
-import org.apache.commons.rng.UniformRandomProvider;
-import org.apache.commons.rng.core.source64.XoRoShiRo128PlusPlus;
-import org.apache.commons.rng.sampling.distribution.ZigguratSampler;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.core.config.Config;
@@ -20,7 +15,7 @@ import java.util.SplittableRandom;
 public final class PseudoRandomScorer {
 
 	/**
-	 * Number of random numbers to throw away before starting to use it.
+	 * Number of random numbers to throw away when deriving the seed.
 	 */
 	private static final int WARMUP_ITERATIONS = 100;
 
@@ -54,42 +49,12 @@ public final class PseudoRandomScorer {
 
 		long tripSeed = tripScore.getSeed(personId, mainMode, trip);
 
-		// Need to create a new instance because reusing them will also create a lot of intermediate arrays
-		XoRoShiRo128PlusPlus rng = new XoRoShiRo128PlusPlus(seed, tripSeed);
-		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
-			rng.nextLong();
-		}
-
+		// The error is a pure function of the seeds, no generator needs to be created
 		return switch (distribution) {
-			case gumbel -> sampleGumbel(rng, 0, scale);
-			case normal -> sampleNormal(rng, 0, scale);
+			case gumbel -> CounterBasedRandom.nextGumbel(seed, tripSeed, 0, 0, scale);
+			case normal -> CounterBasedRandom.nextGaussian(seed, tripSeed, 0) * scale;
 			default -> throw new IllegalStateException("Unsupported distribution: " + distribution);
 		};
 	}
 
-
-	/**
-	 * Sample from a Gumbel distribution.
-	 *
-	 * @param mu   location parameter
-	 * @param beta scale parameter (must be positive)
-	 */
-	private double sampleGumbel(UniformRandomProvider rng, double mu, double beta) {
-
-		double v = rng.nextDouble();
-		if (v < 0.0 || v > 1.0) {
-			throw new OutOfRangeException(v, 0.0, 1.0);
-		} else if (v == 0) {
-			return Double.NEGATIVE_INFINITY;
-		} else if (v == 1) {
-			return Double.POSITIVE_INFINITY;
-		}
-
-		return mu - FastMath.log(-FastMath.log(v)) * beta;
-	}
-
-	private double sampleNormal(UniformRandomProvider rng, double mu, double sigma) {
-		return mu + ZigguratSampler.NormalizedGaussian.of(rng).sample() * sigma;
-	}
-
 }
@@ -0,0 +1,222 @@
+package org.matsim.run.scoring;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdMap;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the person specific variations of {@link IndividualPersonScoringParameters} and writes them to a CSV file.
+ * <p>
+ * Entries are passed through a bounded queue to a background thread, which appends them to a temporary file in the output directory.
+ * Only the header, i.e. the set of all keys, is kept in memory. When the output is written, the temporary file is read again
+ * into one array of values per person and written in the order of the population, with one column per key. Missing values are written as 0.
+ * Persons that are not part of the population are not written.
+ */
+final class UtilVariationsWriter {
+
+	private static final Logger log = LogManager.getLogger(UtilVariationsWriter.class);
+
+	private static final int QUEUE_SIZE = 4096;
+
+	private static final Entry END = new Entry(null, null, null);
+
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+	/**
+	 * Header for the output file.
+	 */
+	private final Set<String> header = new LinkedHashSet<>();
+
+	/**
+	 * Directory for the temporary file.
+	 */
+	private final Path directory;
+
+	private Path tmp;
+	private Thread thread;
+	private volatile Throwable error;
+	private volatile boolean closed;
+
+	UtilVariationsWriter(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Add the variations of one person. Blocks if the writer thread can not keep up.
+	 */
+	void add(Id<Person> person, Object2DoubleMap<String> values) {
+
+		String[] keys = values.keySet().toArray(String[]::new);
+		double[] v = new double[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			v[i] = values.getDouble(keys[i]);
+		}
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			header.addAll(Arrays.asList(keys));
+
+			if (thread == null)
+				start();
+		}
+
+		// Not blocking while holding the lock, the writer may have been closed in the meantime
+		Entry entry = new Entry(person.toString(), keys, v);
+		try {
+			while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+				if (closed)
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while writing util variations", e);
+		}
+	}
+
+	private void start() {
+		try {
+			Files.createDirectories(directory);
+			tmp = Files.createTempFile(directory, "person_util_variations", ".tsv.gz");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		thread = new Thread(this::run, "util-variations-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(tmp.toString())) {
+			while (true) {
+				Entry e = queue.take();
+				if (e == END)
+					break;
+
+				writer.write(e.person);
+				for (int i = 0; i < e.keys.length; i++) {
+					writer.write('\t');
+					writer.write(e.keys[i]);
+					writer.write('\t');
+					writer.write(Double.toString(e.values[i]));
+				}
+				writer.write('\n');
+			}
+		} catch (InterruptedException e) {
+			error = e;
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			error = t;
+			// Consume remaining entries so that producers do not block forever
+			try {
+				while (queue.take() != END) {
+					// discard
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Write all collected entries to the output file, in the order of the given population. Entries added afterwards, or concurrently, are ignored.
+	 */
+	void write(String output, Population population) {
+
+		Set<String> columns;
+		synchronized (this) {
+			closed = true;
+			columns = new LinkedHashSet<>(header);
+		}
+
+		if (thread != null) {
+			try {
+				queue.put(END);
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while writing util variations", e);
+			}
+		}
+
+		if (error != null)
+			throw new RuntimeException("Could not write util variations", error);
+
+		try (CSVPrinter csv = new CSVPrinter(IOUtils.getBufferedWriter(output), CSVFormat.DEFAULT)) {
+
+			csv.print("person");
+			csv.printRecord(columns);
+
+			if (tmp == null)
+				return;
+
+			Object2IntMap<String> index = new Object2IntOpenHashMap<>();
+			for (String s : columns) {
+				index.put(s, index.size());
+			}
+
+			IdMap<Person, double[]> rows = new IdMap<>(Person.class, population.getPersons().size());
+			try (BufferedReader reader = IOUtils.getBufferedReader(tmp.toString())) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] split = line.split("\t");
+
+					double[] row = new double[columns.size()];
+					for (int i = 1; i < split.length; i += 2) {
+						row[index.getInt(split[i])] = Double.parseDouble(split[i + 1]);
+					}
+
+					rows.put(Id.createPersonId(split[0]), row);
+				}
+			}
+
+			for (Person person : population.getPersons().values()) {
+				double[] row = rows.get(person.getId());
+				if (row == null)
+					continue;
+
+				csv.print(person.getId());
+				for (double v : row) {
+					csv.print(v);
+				}
+				csv.println();
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					log.warn("Could not delete temporary file {}", tmp, e);
+				}
+			}
+		}
+	}
+
+	private record Entry(String person, String[] keys, double[] values) {
+	}
+}
@@ -0,0 +1,147 @@
+package org.matsim.run.scoring;
+
+import java.util.Arrays;
+
+/**
+ * Persisted person specific deltas of the mode constants, stored in the {@link #ATTRIBUTE} person attribute.
+ * Values are kept in a double array indexed by {@link ModeIndex}, with two entries per mode. Entries that are not set are NaN.
+ * <p>
+ * The attribute itself is stored as string, e.g. {@code car_constant=0.3|pt_dailyConstant=-1.2},
+ * so that population files can be read without registering an attribute converter.
+ */
+public final class UtilityDeltas {
+
+	/**
+	 * Name of the person attribute.
+	 */
+	public static final String ATTRIBUTE = "utilDelta";
+
+	private static final String CONSTANT = "_constant";
+	private static final String DAILY_CONSTANT = "_dailyConstant";
+
+	private double[] values = new double[0];
+
+	/**
+	 * Return the deltas stored in an attribute value, which can be either an instance of this class or a string in the former format.
+	 *
+	 * @return the deltas, or null if there are none
+	 */
+	public static UtilityDeltas of(Object attribute) {
+		if (attribute instanceof UtilityDeltas d)
+			return d;
+		if (attribute instanceof String s)
+			return parse(s);
+		if (attribute == null)
+			return null;
+
+		throw new IllegalArgumentException("Unsupported value for " + ATTRIBUTE + ": " + attribute);
+	}
+
+	/**
+	 * Parse the string representation.
+	 */
+	public static UtilityDeltas parse(String value) {
+
+		UtilityDeltas deltas = new UtilityDeltas();
+
+		int start = 0;
+		while (start < value.length()) {
+			int end = value.indexOf('|', start);
+			if (end < 0)
+				end = value.length();
+
+			int eq = value.indexOf('=', start);
+			if (eq < 0 || eq > end)
+				throw new IllegalArgumentException("Invalid entry in " + ATTRIBUTE + ": " + value.substring(start, end));
+
+			String key = value.substring(start, eq);
+			double v = Double.parseDouble(value.substring(eq + 1, end));
+
+			if (key.endsWith(DAILY_CONSTANT))
+				deltas.setDailyConstant(key.substring(0, key.length() - DAILY_CONSTANT.length()), v);
+			else if (key.endsWith(CONSTANT))
+				deltas.setConstant(key.substring(0, key.length() - CONSTANT.length()), v);
+			else
+				throw new IllegalArgumentException("Unknown key in " + ATTRIBUTE + ": " + key);
+
+			start = end + 1;
+		}
+
+		return deltas;
+	}
+
+	private double get(int i) {
+		return i < values.length ? values[i] : Double.NaN;
+	}
+
+	private void set(int i, double v) {
+		if (i >= values.length) {
+			int size = values.length;
+			values = Arrays.copyOf(values, (i | 1) + 1);
+			Arrays.fill(values, size, values.length, Double.NaN);
+		}
+		values[i] = v;
+	}
+
+	/**
+	 * Whether a delta of the constant is stored for this mode.
+	 */
+	public boolean hasConstant(String mode) {
+		return !Double.isNaN(get(2 * ModeIndex.of(mode)));
+	}
+
+	/**
+	 * Whether a delta of the daily constant is stored for this mode.
+	 */
+	public boolean hasDailyConstant(String mode) {
+		return !Double.isNaN(get(2 * ModeIndex.of(mode) + 1));
+	}
+
+	/**
+	 * Delta of the constant, NaN if not set.
+	 */
+	public double getConstant(String mode) {
+		return get(2 * ModeIndex.of(mode));
+	}
+
+	/**
+	 * Delta of the daily constant, NaN if not set.
+	 */
+	public double getDailyConstant(String mode) {
+		return get(2 * ModeIndex.of(mode) + 1);
+	}
+
+	public void setConstant(String mode, double value) {
+		set(2 * ModeIndex.of(mode), value);
+	}
+
+	public void setDailyConstant(String mode, double value) {
+		set(2 * ModeIndex.of(mode) + 1, value);
+	}
+
+	/**
+	 * Whether no value is set.
+	 */
+	public boolean isEmpty() {
+		for (double v : values) {
+			if (!Double.isNaN(v))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (Double.isNaN(values[i]))
+				continue;
+
+			if (!sb.isEmpty())
+				sb.append('|');
+
+			sb.append(ModeIndex.get(i / 2)).append(i % 2 == 0 ? CONSTANT : DAILY_CONSTANT).append('=').append(values[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,58 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Compares the event throughput with and without {@link InstrumentedEventsManager}.
+ * Only runs with {@code -Dbenchmark=true}, e.g. {@code mvn test -Dtest=InstrumentedEventsManagerBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class InstrumentedEventsManagerBenchmark {
+
+	private static final int WARMUP = 3;
+	private static final int ROUNDS = 5;
+	private static final int EVENTS = 2_000_000;
+
+	@TempDir
+	private Path output;
+
+	/**
+	 * Return the best time per event in nanoseconds.
+	 */
+	private static double measure(String name, Supplier<EventsManager> manager) {
+
+		double best = Double.POSITIVE_INFINITY;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			EventsManager events = manager.get();
+			for (int i = 0; i < 5; i++) {
+				events.addHandler(new InstrumentedEventsManagerTest.LinkCounter());
+			}
+			events.addHandler(new InstrumentedEventsManagerTest.AllCounter());
+
+			long t = System.nanoTime();
+			InstrumentedEventsManagerTest.process(events, EVENTS / 2);
+			double ns = (double) (System.nanoTime() - t) / EVENTS;
+			if (r >= WARMUP)
+				best = Math.min(best, ns);
+		}
+
+		System.out.printf("%-14s %8.1f ns/event%n", name, best);
+		return best;
+	}
+
+	@Test
+	void overhead() {
+		double plain = measure("plain", EventsUtils::createEventsManager);
+		double instrumented = measure("instrumented",
+			() -> new InstrumentedEventsManager(EventsUtils.createEventsManager(), output.resolve("handler_timings.csv")));
+
+		System.out.printf("Overhead: %.1f%%%n", (instrumented / plain - 1) * 100);
+	}
+}
@@ -0,0 +1,100 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstrumentedEventsManagerTest {
+
+	private static final Id<Link> LINK = Id.createLinkId("l");
+
+	@TempDir
+	private Path output;
+
+	/**
+	 * Process link enter and departure events, {@code n} of each.
+	 */
+	static void process(EventsManager events, int n) {
+		Id<Person> person = Id.createPersonId("p");
+		Id<Vehicle> vehicle = Id.createVehicleId("v");
+
+		events.initProcessing();
+		for (int i = 0; i < n; i++) {
+			events.processEvent(new PersonDepartureEvent(i, person, LINK, TransportMode.car, TransportMode.car));
+			events.processEvent(new LinkEnterEvent(i, vehicle, LINK));
+		}
+		events.finishProcessing();
+	}
+
+	@Test
+	void onlyMatchingEvents() throws IOException {
+
+		Path csv = output.resolve("handler_timings.csv");
+		EventsManager events = new InstrumentedEventsManager(EventsUtils.createEventsManager(), csv);
+
+		LinkCounter links = new LinkCounter();
+		AllCounter all = new AllCounter();
+		events.addHandler(links);
+		events.addHandler(all);
+
+		events.resetHandlers(0);
+		assertThat(links.resets).isEqualTo(1);
+
+		process(events, 10);
+
+		assertThat(links.count).isEqualTo(10);
+		assertThat(all.count).isEqualTo(20);
+
+		List<String> lines = Files.readAllLines(csv);
+		String name = LinkCounter.class.getName();
+
+		assertThat(lines)
+			.anyMatch(l -> l.startsWith("0," + name + ",LinkEnterEvent,10,"))
+			.anyMatch(l -> l.startsWith("0," + AllCounter.class.getName() + ",all,20,"))
+			.noneMatch(l -> l.contains(name + ",PersonDepartureEvent"));
+	}
+
+	static final class LinkCounter implements LinkEnterEventHandler {
+
+		int count;
+		int resets;
+
+		@Override
+		public void handleEvent(LinkEnterEvent event) {
+			count++;
+		}
+
+		@Override
+		public void reset(int iteration) {
+			resets++;
+		}
+	}
+
+	static final class AllCounter implements BasicEventHandler {
+
+		int count;
+
+		@Override
+		public void handleEvent(Event event) {
+			count++;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.analysis.EmissionAggregator.EmissionType;
+import org.matsim.analysis.EmissionAggregator.VehicleCategory;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.contrib.emissions.Pollutant;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OnlineEmissionSummaryTest {
+
+	private static final List<Pollutant> POLLUTANTS = List.of(Pollutant.FC_MJ, Pollutant.CO2e);
+
+	@TempDir
+	private Path tmp;
+
+	private static VehicleType addType(Vehicles vehicles, String id) {
+		VehicleType type = VehicleUtils.createVehicleType(Id.create(id, VehicleType.class));
+		vehicles.addVehicleType(type);
+		return type;
+	}
+
+	private static List<Event> events() {
+		Map<Pollutant, Double> emissions = Map.of(Pollutant.FC_MJ, 2.0, Pollutant.CO2e, 10.0);
+
+		List<Event> events = new ArrayList<>();
+		for (String vehicle : List.of("car1", "car2", "bus1", "tram1")) {
+			for (int i = 0; i < 3; i++) {
+				events.add(new WarmEmissionEvent(3600 * i + 10, Id.createLinkId("l" + i), Id.createVehicleId(vehicle), emissions));
+			}
+			events.add(new ColdEmissionEvent(20, Id.createLinkId("l0"), Id.createVehicleId(vehicle), emissions));
+		}
+		return events;
+	}
+
+	private static void handle(EmissionSummaryHandler handler) {
+		for (Event event : events()) {
+			if (event instanceof WarmEmissionEvent warm)
+				handler.handleEvent(warm);
+			else if (event instanceof ColdEmissionEvent cold)
+				handler.handleEvent(cold);
+		}
+	}
+
+	private static Map<VehicleCategory, Double> totals(EmissionAggregator data) {
+		Map<VehicleCategory, Double> totals = new EnumMap<>(VehicleCategory.class);
+		for (EmissionType type : EmissionType.values()) {
+			data.forEachByTime(type, POLLUTANTS, (category, hour, values) -> totals.merge(category, values[0] + values[1], Double::sum));
+		}
+		return totals;
+	}
+
+	@Test
+	void sameCategoriesAsAfterRun() {
+
+		// Vehicles as they are kept during the simulation
+		Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+		VehicleType car = addType(vehicles, "car");
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("car1"), car));
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("car2"), car));
+
+		Vehicles transitVehicles = VehicleUtils.createVehiclesContainer();
+		VehicleType bus = addType(transitVehicles, "Bus_veh_type");
+		VehicleType tram = addType(transitVehicles, "Tram_veh_type");
+		transitVehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("bus1"), bus));
+		transitVehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("tram1"), tram));
+
+		EmissionSummaryHandler online = new EmissionSummaryHandler(OnlineEmissionModule.combine(vehicles, transitVehicles));
+		handle(online);
+
+		// All vehicles are written to one file after the run
+		String allVehicles = tmp.resolve("output_allVehicles.xml.gz").toString();
+		new MatsimVehicleWriter(OnlineEmissionModule.combine(vehicles, transitVehicles)).writeFile(allVehicles);
+
+		Vehicles read = VehicleUtils.createVehiclesContainer();
+		new MatsimVehicleReader(read).readFile(allVehicles);
+
+		EmissionSummaryHandler offline = new EmissionSummaryHandler(read, VehicleUtils.createVehiclesContainer());
+		handle(offline);
+
+		Map<VehicleCategory, Double> onlineTotals = totals(online.getData());
+
+		assertThat(onlineTotals)
+			.containsOnlyKeys(VehicleCategory.CAR, VehicleCategory.PT)
+			.isEqualTo(totals(offline.getData()));
+
+		assertThat(onlineTotals.get(VehicleCategory.PT)).isEqualTo(onlineTotals.get(VehicleCategory.CAR));
+	}
+
+	@Test
+	void sameCategoriesFromEventFile() throws Exception {
+
+		Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+		VehicleType car = addType(vehicles, "car");
+		// Category is only known from the attribute, not from the type id
+		VehicleType bus = addType(vehicles, "eBus");
+		bus.getAttributes().putAttribute(EmissionDataProcessor.VEHICLE_CATEGORY_ATTRIBUTE, VehicleCategory.PT.getLabel());
+
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("car1"), car));
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("car2"), car));
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("bus1"), bus));
+		vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("tram1"), bus));
+
+		EmissionSummaryHandler online = new EmissionSummaryHandler(vehicles);
+		handle(online);
+
+		String vehicleFile = tmp.resolve("output_vehicles.xml.gz").toString();
+		new MatsimVehicleWriter(vehicles).writeFile(vehicleFile);
+
+		String eventFile = tmp.resolve("emission.events.xml.gz").toString();
+		EventWriterXML writer = new EventWriterXML(eventFile);
+		events().forEach(writer::handleEvent);
+		writer.closeFile();
+
+		EmissionAggregator offline = EmissionDataProcessor.parseEventFile(eventFile, EmissionDataProcessor.parseVehicleFile(vehicleFile));
+
+		assertThat(totals(online.getData()))
+			.containsOnlyKeys(VehicleCategory.CAR, VehicleCategory.PT)
+			.isEqualTo(totals(offline));
+	}
+}
@@ -0,0 +1,117 @@
+package org.matsim.prepare.opt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PlanAssignmentProblemTest {
+
+	private static PlanAssignmentProblem createProblem() {
+
+		SplittableRandom rnd = new SplittableRandom(1);
+
+		int[] counts = new int[50];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = rnd.nextInt(100);
+		}
+
+		List<PlanPerson> persons = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++) {
+			Int2IntMap[] plans = new Int2IntMap[3];
+			for (int k = 0; k < plans.length; k++) {
+				plans[k] = new Int2IntOpenHashMap();
+				for (int j = rnd.nextInt(3); j > 0; j--) {
+					plans[k].merge(rnd.nextInt(counts.length), 1, Integer::sum);
+				}
+			}
+
+			persons.add(new PlanPerson(Id.createPersonId(i), 0, plans));
+		}
+
+		return new PlanAssignmentProblem(3, ErrorMetric.abs_error, persons, counts);
+	}
+
+	/**
+	 * Former sequential pre optimization with one random generator, which recounted all persons in every iteration.
+	 */
+	private static void iterateSequential(PlanAssignmentProblem problem, int n, double prob, double beta, double w) {
+
+		ScoreCalculator calc = new ScoreCalculator();
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		double step = prob / n;
+		double best = Double.NEGATIVE_INFINITY;
+		int noBest = 0;
+
+		for (int i = 0; i < n; i++) {
+
+			calc.resetWorkingSolution(problem);
+			double score = calc.calculateScore().score().doubleValue();
+
+			if (score >= best) {
+				best = score;
+				noBest = 0;
+			} else {
+				noBest++;
+			}
+
+			if (noBest >= 30)
+				break;
+
+			double p = prob - step * i;
+			double b = beta - (beta / n) * i;
+
+			for (PlanPerson person : problem.getPersons()) {
+				if (rnd.nextDouble() < p) {
+					person.setScore(calc);
+					person.setK(person.changePlanExpBeta(b, w, rnd));
+				}
+			}
+		}
+	}
+
+	private static double finalScore(PlanAssignmentProblem problem) {
+		ScoreCalculator calc = new ScoreCalculator();
+		calc.resetWorkingSolution(problem);
+		return calc.calculateScore().score().doubleValue();
+	}
+
+	@Test
+	public void reproducible() throws InterruptedException {
+
+		PlanAssignmentProblem single = createProblem();
+		single.iterate(100, 0.5, 1, 0.01, 1);
+
+		PlanAssignmentProblem parallel = createProblem();
+		parallel.iterate(100, 0.5, 1, 0.01, 4);
+
+		assertThat(parallel.getScore()).isEqualTo(single.getScore());
+		assertThat(parallel.getPersons().stream().mapToInt(PlanPerson::getK).toArray())
+			.containsExactly(single.getPersons().stream().mapToInt(PlanPerson::getK).toArray());
+	}
+
+	@Test
+	public void notWorseThanSequential() throws InterruptedException {
+
+		PlanAssignmentProblem sequential = createProblem();
+		iterateSequential(sequential, 100, 0.5, 1, 0.01);
+
+		PlanAssignmentProblem parallel = createProblem();
+		parallel.iterate(100, 0.5, 1, 0.01, 4);
+
+		double initial = finalScore(createProblem());
+		double expected = finalScore(sequential);
+
+		// Random draws differ, so the results are not identical. Scores are the negative error.
+		assertThat(expected).isGreaterThanOrEqualTo(initial);
+		assertThat(finalScore(parallel)).isGreaterThanOrEqualTo(expected - 0.01 * Math.abs(expected));
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.matsim.run.scoring;
+
+import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.rng.core.source64.XoRoShiRo128PlusPlus;
+import org.apache.commons.rng.sampling.distribution.ZigguratSampler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.function.LongToDoubleFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the time per pseudo random trip error of {@link CounterBasedRandom} with the former generator,
+ * which created a {@link XoRoShiRo128PlusPlus} per trip and discarded 100 values.
+ * Only runs with {@code -Dbenchmark=true}, e.g. {@code mvn test -Dtest=CounterBasedRandomBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class CounterBasedRandomBenchmark {
+
+	private static final long SEED = 4711;
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+	private static final int SAMPLES = 1_000_000;
+
+	private static double oldGumbel(long tripSeed) {
+		XoRoShiRo128PlusPlus rng = new XoRoShiRo128PlusPlus(SEED, tripSeed);
+		for (int i = 0; i < 100; i++) {
+			rng.nextLong();
+		}
+		return -FastMath.log(-FastMath.log(rng.nextDouble()));
+	}
+
+	private static double oldNormal(long tripSeed) {
+		XoRoShiRo128PlusPlus rng = new XoRoShiRo128PlusPlus(SEED, tripSeed);
+		for (int i = 0; i < 100; i++) {
+			rng.nextLong();
+		}
+		return ZigguratSampler.NormalizedGaussian.of(rng).sample();
+	}
+
+	/**
+	 * Return the best time per sample in nanoseconds.
+	 */
+	private static double measure(String name, LongToDoubleFunction f) {
+
+		double best = Double.POSITIVE_INFINITY;
+		double sink = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < SAMPLES; i++) {
+				sink += f.applyAsDouble(i);
+			}
+			double ns = (double) (System.nanoTime() - t) / SAMPLES;
+			if (r >= WARMUP)
+				best = Math.min(best, ns);
+		}
+
+		System.out.printf("%-12s %8.1f ns/sample (checksum %.3f)%n", name, best, sink);
+		assertThat(sink).isFinite();
+		return best;
+	}
+
+	@Test
+	void tripErrors() {
+		measure("old gumbel", CounterBasedRandomBenchmark::oldGumbel);
+		measure("new gumbel", k -> CounterBasedRandom.nextGumbel(SEED, k, 0, 0, 1));
+		measure("old normal", CounterBasedRandomBenchmark::oldNormal);
+		measure("new normal", k -> CounterBasedRandom.nextGaussian(SEED, k, 0));
+	}
+}
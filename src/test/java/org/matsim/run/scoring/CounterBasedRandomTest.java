@@ -0,0 +1,68 @@
+package org.matsim.run.scoring;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class CounterBasedRandomTest {
+
+	private static final int N = 200_000;
+
+	@Test
+	void deterministic() {
+
+		assertThat(CounterBasedRandom.nextLong(1, 2, 3)).isEqualTo(CounterBasedRandom.nextLong(1, 2, 3));
+		assertThat(CounterBasedRandom.nextLong(1, 2, 3)).isNotEqualTo(CounterBasedRandom.nextLong(1, 2, 4));
+		assertThat(CounterBasedRandom.nextLong(1, 2, 3)).isNotEqualTo(CounterBasedRandom.nextLong(1, 3, 3));
+		assertThat(CounterBasedRandom.nextLong(1, 2, 3)).isNotEqualTo(CounterBasedRandom.nextLong(2, 2, 3));
+
+		assertThat(CounterBasedRandom.hash("person1")).isEqualTo(CounterBasedRandom.hash(new StringBuilder("person1")));
+	}
+
+	@Test
+	void uniform() {
+
+		double sum = 0;
+		int[] bins = new int[10];
+		for (int i = 0; i < N; i++) {
+			double v = CounterBasedRandom.nextDouble(42, i, 0);
+			assertThat(v).isGreaterThan(0).isLessThan(1);
+			sum += v;
+			bins[(int) (v * bins.length)]++;
+		}
+
+		assertThat(sum / N).isCloseTo(0.5, within(0.005));
+		for (int bin : bins) {
+			assertThat(bin).isCloseTo(N / bins.length, within(N / 100));
+		}
+	}
+
+	@Test
+	void gaussian() {
+
+		double sum = 0;
+		double sq = 0;
+		for (int i = 0; i < N; i++) {
+			double v = CounterBasedRandom.nextGaussian(42, 7, i);
+			sum += v;
+			sq += v * v;
+		}
+
+		double mean = sum / N;
+		assertThat(mean).isCloseTo(0, within(0.01));
+		assertThat(sq / N - mean * mean).isCloseTo(1, within(0.02));
+	}
+
+	@Test
+	void gumbel() {
+
+		double sum = 0;
+		for (int i = 0; i < N; i++) {
+			sum += CounterBasedRandom.nextGumbel(42, i, 0, 0, 1);
+		}
+
+		// Mean of the standard Gumbel distribution is the Euler-Mascheroni constant
+		assertThat(sum / N).isCloseTo(0.5772, within(0.01));
+	}
+}
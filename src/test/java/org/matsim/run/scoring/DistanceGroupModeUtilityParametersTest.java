@@ -85,4 +85,27 @@ class DistanceGroupModeUtilityParametersTest {
 		assertThat(m.calcUtilityDistDelta(2000)).isEqualTo(-2);
 
 	}
+
+	@Test
+	void sameAsLinearSearch() {
+
+		List<Integer> dists = List.of(1000, 2000, 5000, 10000, 20000, 50000);
+		DoubleList utils = DoubleList.of(-1d, -0.5d, 0.2d, 1d, 3d, 4d);
+
+		DistanceGroup[] groups = IndividualPersonScoringParameters.calcDistanceGroups(dists, utils);
+		DistanceGroupModeUtilityParameters m = params(base, dists, utils);
+
+		for (double d = 0; d <= 60000; d += 250) {
+
+			DistanceGroup group = groups[0];
+			for (int i = 1; i < groups.length; i++) {
+				if (groups[i].dist() > d)
+					break;
+
+				group = groups[i];
+			}
+
+			assertThat(m.calcUtilityDistDelta(d)).isEqualTo(group.constant() + group.utilPerM() * (d - group.dist()));
+		}
+	}
 }
@@ -0,0 +1,135 @@
+package org.matsim.run.scoring;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.ScoringConfigGroup;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.DefaultAnalysisMainModeIdentifier;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.ScoringFunction;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class IncrementalScoringFunctionTest {
+
+	private static final Id<Link> LINK = Id.createLinkId("l");
+
+	private static AdvancedScoringFunctionFactory createFactory(boolean incremental) {
+
+		Config config = ConfigUtils.createConfig();
+		for (String type : new String[]{"home", "work"}) {
+			ScoringConfigGroup.ActivityParams params = new ScoringConfigGroup.ActivityParams(type);
+			params.setTypicalDuration(type.equals("home") ? 12 * 3600 : 8 * 3600);
+			config.scoring().addActivityParams(params);
+		}
+		config.scoring().getOrCreateModeParams(TransportMode.car).setMonetaryDistanceRate(-0.0002);
+
+		AdvancedScoringConfigGroup advanced = ConfigUtils.addOrGetModule(config, AdvancedScoringConfigGroup.class);
+		advanced.incrementalScoring = incremental;
+		advanced.incrementalScoringTolerance = 1;
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		return new AdvancedScoringFunctionFactory(config, new DefaultAnalysisMainModeIdentifier(),
+			new SubpopulationScoringParameters(scenario), null);
+	}
+
+	private static double score(AdvancedScoringFunctionFactory factory, Person person, double delay) {
+		return run(factory, person, delay).getScore();
+	}
+
+	/**
+	 * Score a home-work-home day, where the travel times are increased by {@code delay} seconds.
+	 */
+	private static ScoringFunction run(AdvancedScoringFunctionFactory factory, Person person, double delay) {
+
+		ScoringFunction f = factory.createNewScoringFunction(person);
+
+		Activity home = PopulationUtils.createActivityFromLinkId("home", LINK);
+		home.setEndTime(8 * 3600);
+		f.handleActivity(home);
+
+		f.handleLeg(leg(8 * 3600, 1800 + delay));
+
+		Activity work = PopulationUtils.createActivityFromLinkId("work", LINK);
+		work.setStartTime(8.5 * 3600 + delay);
+		work.setEndTime(17 * 3600);
+		f.handleActivity(work);
+
+		f.handleLeg(leg(17 * 3600, 1800 + delay));
+		f.addMoney(-2);
+
+		Activity back = PopulationUtils.createActivityFromLinkId("home", LINK);
+		back.setStartTime(17.5 * 3600 + delay);
+		f.handleActivity(back);
+
+		f.finish();
+		return f;
+	}
+
+	private static Leg leg(double departure, double travelTime) {
+		Leg leg = PopulationUtils.createLeg(TransportMode.car);
+		leg.setDepartureTime(departure);
+		leg.setTravelTime(travelTime);
+		leg.setRoute(RouteUtils.createGenericRouteImpl(LINK, LINK));
+		leg.getRoute().setDistance(10_000);
+		leg.getRoute().setTravelTime(travelTime);
+		return leg;
+	}
+
+	@Test
+	void sameScoresAsWithoutIncrementalScoring() {
+
+		Person person = PopulationUtils.getFactory().createPerson(Id.createPersonId("p"));
+
+		AdvancedScoringFunctionFactory full = createFactory(false);
+		AdvancedScoringFunctionFactory incremental = createFactory(true);
+
+		double expected = score(full, person, 0);
+		assertThat(expected).isFinite();
+
+		// First iteration is always scored
+		assertThat(score(incremental, person, 0)).isEqualTo(expected);
+
+		// Identical experience reuses the score
+		assertThat(score(incremental, person, 0)).isEqualTo(expected);
+
+		// Differences within the tolerance reuse the stored score, which is close to the actual one
+		assertThat(score(incremental, person, 0.5))
+			.isEqualTo(expected)
+			.isCloseTo(score(full, person, 0.5), within(1e-2));
+
+		// Larger differences are scored again
+		assertThat(score(incremental, person, 120))
+			.isEqualTo(score(full, person, 120))
+			.isNotEqualTo(expected);
+
+		// Stored experience is now the one of the last scored iteration
+		assertThat(score(incremental, person, 120.5)).isEqualTo(score(full, person, 120));
+	}
+
+	@Test
+	void noExplanationForReusedScores() {
+
+		Person person = PopulationUtils.getFactory().createPerson(Id.createPersonId("p"));
+		AdvancedScoringFunctionFactory incremental = createFactory(true);
+
+		StringBuilder scored = new StringBuilder();
+		run(incremental, person, 0).explainScore(scored);
+		assertThat(scored).isNotEmpty();
+
+		StringBuilder reused = new StringBuilder();
+		run(incremental, person, 0).explainScore(reused);
+		assertThat(reused).isEmpty();
+	}
+}
@@ -0,0 +1,82 @@
+package org.matsim.run.scoring;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the throughput of {@link PiecewiseLinearlLegScoring}, with one scorer per agent as in the simulation.
+ * Only runs with {@code -Dbenchmark=true}, e.g. {@code mvn test -Dtest=PiecewiseLinearlLegScoringBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class PiecewiseLinearlLegScoringBenchmark {
+
+	private static final Id<Link> LINK = Id.createLinkId("l");
+	private static final Id<Person> PERSON = Id.createPersonId("p");
+
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+	private static final int AGENTS = 1_000_000;
+
+	private static Leg leg(String mode, double departure) {
+		Leg leg = PopulationUtils.createLeg(mode);
+		leg.setDepartureTime(departure);
+		leg.setTravelTime(1200);
+		leg.setRoute(RouteUtils.createGenericRouteImpl(LINK, LINK));
+		leg.getRoute().setDistance(5000);
+		return leg;
+	}
+
+	@Test
+	void legsPerSecond() {
+
+		Config config = ConfigUtils.createConfig();
+		ScoringParameters params = new SubpopulationScoringParameters(ScenarioUtils.createScenario(config))
+			.getScoringParameters(PopulationUtils.getFactory().createPerson(PERSON));
+
+		List<Leg> legs = List.of(
+			leg(TransportMode.walk, 7 * 3600), leg(TransportMode.pt, 7.5 * 3600), leg(TransportMode.walk, 8 * 3600),
+			leg(TransportMode.car, 12 * 3600), leg(TransportMode.car, 13 * 3600), leg(TransportMode.bike, 17 * 3600)
+		);
+
+		double best = Double.POSITIVE_INFINITY;
+		double sink = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < AGENTS; i++) {
+				PiecewiseLinearlLegScoring scoring = new PiecewiseLinearlLegScoring(params, config.transit().getTransitModes());
+				for (Leg leg : legs) {
+					double time = leg.getDepartureTime().seconds();
+					scoring.handleEvent(new ActivityEndEvent(time, PERSON, LINK, null, "act", null));
+					scoring.handleEvent(new PersonDepartureEvent(time, PERSON, LINK, leg.getMode(), leg.getMode()));
+					scoring.handleLeg(leg);
+				}
+				scoring.finish();
+				sink += scoring.getScore();
+			}
+			double seconds = (System.nanoTime() - t) / 1e9;
+			if (r >= WARMUP)
+				best = Math.min(best, seconds);
+		}
+
+		System.out.printf("%.0f legs/s (checksum %.3f)%n", AGENTS * legs.size() / best, sink);
+		assertThat(sink).isFinite();
+	}
+}
@@ -0,0 +1,62 @@
+package org.matsim.run.scoring;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UtilVariationsWriterTest {
+
+	@TempDir
+	private Path output;
+
+	@Test
+	void populationOrder() throws IOException {
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		for (String id : new String[]{"c", "a", "b", "d"}) {
+			population.addPerson(population.getFactory().createPerson(Id.createPersonId(id)));
+		}
+
+		UtilVariationsWriter writer = new UtilVariationsWriter(output);
+
+		// Added in a different order than the population, person d has no variations
+		Object2DoubleMap<String> values = new Object2DoubleOpenHashMap<>();
+		values.put("car_constant", 1);
+		writer.add(Id.createPersonId("a"), values);
+
+		values = new Object2DoubleOpenHashMap<>();
+		values.put("pt_constant", 2);
+		writer.add(Id.createPersonId("b"), values);
+
+		values = new Object2DoubleOpenHashMap<>();
+		values.put("car_constant", 3);
+		values.put("pt_constant", 4);
+		writer.add(Id.createPersonId("c"), values);
+
+		Path csv = output.resolve("person_util_variations.csv");
+		writer.write(csv.toString(), population);
+
+		assertThat(Files.readAllLines(csv)).containsExactly(
+			"person,car_constant,pt_constant",
+			"c,3.0,4.0",
+			"a,1.0,0.0",
+			"b,0.0,2.0"
+		);
+
+		// Temporary file is removed
+		try (var files = Files.list(output)) {
+			assertThat(files).containsExactly(csv);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.matsim.run.scoring;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UtilityDeltasTest {
+
+	@TempDir
+	private Path output;
+
+	private Config createConfig(AdvancedScoringConfigGroup.LoadPreferences load) {
+
+		Config config = ConfigUtils.createConfig();
+		config.controller().setOutputDirectory(output.toString());
+
+		AdvancedScoringConfigGroup advanced = ConfigUtils.addOrGetModule(config, AdvancedScoringConfigGroup.class);
+		advanced.incomeDependent = AdvancedScoringConfigGroup.IncomeDependentScoring.none;
+		advanced.loadPreferences = load;
+
+		AdvancedScoringConfigGroup.ScoringParameters params = new AdvancedScoringConfigGroup.ScoringParameters();
+		AdvancedScoringConfigGroup.ModeParams car = params.getOrCreateModeParams(TransportMode.car);
+		car.deltaConstant = 1;
+		car.varConstant = AdvancedScoringConfigGroup.VariationType.normal;
+		advanced.addParameterSet(params);
+
+		return config;
+	}
+
+	@Test
+	void parse() {
+
+		UtilityDeltas deltas = UtilityDeltas.parse("car_constant=0.3|pt_dailyConstant=-1.2");
+
+		assertThat(deltas.getConstant(TransportMode.car)).isEqualTo(0.3);
+		assertThat(deltas.hasDailyConstant(TransportMode.car)).isFalse();
+		assertThat(deltas.getDailyConstant(TransportMode.pt)).isEqualTo(-1.2);
+		assertThat(deltas.hasConstant(TransportMode.pt)).isFalse();
+
+		assertThat(deltas).hasToString("car_constant=0.3|pt_dailyConstant=-1.2");
+	}
+
+	@Test
+	void readWithScenarioLoader() {
+
+		Scenario scenario = ScenarioUtils.createScenario(createConfig(AdvancedScoringConfigGroup.LoadPreferences.none));
+		Person person = scenario.getPopulation().getFactory().createPerson(Id.createPersonId("p"));
+		scenario.getPopulation().addPerson(person);
+
+		new IndividualPersonScoringParameters(scenario).getScoringParameters(person);
+
+		UtilityDeltas written = UtilityDeltas.of(person.getAttributes().getAttribute(UtilityDeltas.ATTRIBUTE));
+		assertThat(written).isNotNull();
+		assertThat(written.hasConstant(TransportMode.car)).isTrue();
+
+		String plans = output.resolve("plans.xml").toString();
+		new PopulationWriter(scenario.getPopulation()).write(plans);
+
+		// Read like the scenario classes do, without any attribute converter
+		Config config = createConfig(AdvancedScoringConfigGroup.LoadPreferences.requireAttribute);
+		config.plans().setInputFile(plans);
+		Scenario loaded = ScenarioUtils.loadScenario(config);
+
+		Person read = loaded.getPopulation().getPersons().get(person.getId());
+		UtilityDeltas deltas = UtilityDeltas.of(read.getAttributes().getAttribute(UtilityDeltas.ATTRIBUTE));
+
+		assertThat(deltas).isNotNull();
+		assertThat(deltas.getConstant(TransportMode.car)).isEqualTo(written.getConstant(TransportMode.car));
+
+		// Stored preferences are loaded again
+		new IndividualPersonScoringParameters(loaded).getScoringParameters(read);
+		assertThat(PopulationUtils.getPersonAttribute(read, UtilityDeltas.ATTRIBUTE))
+			.isEqualTo(written.toString());
+	}
+}